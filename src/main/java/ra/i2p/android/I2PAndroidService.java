@@ -4,6 +4,7 @@ import ra.common.Client;
 import ra.common.Envelope;
 import ra.common.messaging.MessageProducer;
 import ra.common.network.*;
+import ra.common.route.ExternalRoute;
 import ra.common.route.Route;
 import ra.common.service.ServiceStatus;
 import ra.common.service.ServiceStatusObserver;
@@ -12,7 +13,15 @@ import ra.common.Wait;
 import ra.common.tasks.TaskRunner;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 /**
@@ -32,6 +41,19 @@ public final class I2PAndroidService extends NetworkService {
     public static final String OPERATION_UPDATE_GEOIP_ENABLEMENT = "UPDATE_GEOIP_ENABLEMENT";
     public static final String OPERATION_ACTIVE_PEERS_COUNT = "ACTIVE_PEERS_COUNT";
 
+    /**
+     * Name of the value a reply carries holding the id of the request Envelope it answers.
+     */
+    public static final String CORRELATION_ID = "correlationId";
+
+    /**
+     * Values a signed inbound Envelope carries: the signature scheme (one of the scheme constants
+     * below), the signer's X.509 encoded public key and the signature over signedBytes, both Base64.
+     */
+    public static final String SIGNATURE_SCHEME = "sig.scheme";
+    public static final String SIGNATURE_KEY = "sig.key";
+    public static final String SIGNATURE = "sig.value";
+
     /**
      * 1 = ElGamal-2048 / DSA-1024
      * 2 = ECDH-256 / ECDSA-256
@@ -55,6 +77,21 @@ public final class I2PAndroidService extends NetworkService {
     private TaskRunner taskRunner;
     private Map<String, I2PSession> sessions = new HashMap<>();
 
+    private static final int DEFAULT_MAX_PEERS = 100;
+    private static final long ACTIVE_PEER_WINDOW_MS = 10 * 60 * 1000L; // 10 minutes
+    private I2PPeerTable peerTable = new I2PPeerTable(DEFAULT_MAX_PEERS);
+    private final I2PPeerHealth peerHealth = new I2PPeerHealth();
+
+    private final I2PRequestCorrelator correlator = new I2PRequestCorrelator();
+    private I2PSignatureVerifier signatureVerifier;
+    private I2PReliableDelivery reliableDelivery;
+    private I2POutboundJournal outboundJournal;
+    // Journal handles of drained Envelopes awaiting acknowledgement by id
+    private final Map<String,Long> journalHandles = new ConcurrentHashMap<>();
+    private final Object drainLock = new Object();
+    private static final long JOURNAL_DRAIN_INTERVAL_MS = 5 * 1000L;
+    private ScheduledExecutorService journalDrainer;
+
     final Map<String,Long> inflightTimers = new HashMap<>();
 
     public I2PAndroidService() {
@@ -161,51 +198,525 @@ public final class I2PAndroidService extends NetworkService {
      * @return boolean was successful
      */
     public Boolean sendOut(Envelope envelope) {
+        if(outboundJournal!=null
+                && (getNetworkState().networkStatus!=NetworkStatus.CONNECTED || outboundJournal.hasPending())) {
+            // Keep ordering: while anything is queued, new messages go behind it
+            if(!journal(envelope)) {
+                return false;
+            }
+            if(getNetworkState().networkStatus==NetworkStatus.CONNECTED) {
+                drainOutbound();
+            }
+            return true;
+        }
+        NetworkPeer destination = destination(envelope);
+        String fingerprint = destination==null ? null : destination.getDid().getPublicKey().getFingerprint();
+        if(fingerprint!=null && !admit(destination, fingerprint)) {
+            LOG.fine("Circuit to "+I2PPeerHealth.abbrev(fingerprint)+" open; failing fast.");
+            envelope.getMessage().addErrorMessage("Destination Peer unavailable.");
+            return false;
+        }
+        return deliver(envelope, fingerprint);
+    }
+
+    /**
+     * Sends through reliable delivery when enabled, otherwise straight to the session,
+     * and records the outcome in the destination's health.
+     */
+    private Boolean deliver(Envelope envelope, String fingerprint) {
+        Boolean sent = reliableDelivery!=null ? reliableDelivery.send(envelope) : transmit(envelope);
+        if(fingerprint!=null) {
+            if(!sent) {
+                peerFailed(fingerprint, false);
+            } else if(reliableDelivery==null && !correlator.contains(envelope.getId())) {
+                // Reliable sends are judged on acknowledgement and requests on their reply instead
+                peerSucceeded(fingerprint);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Folds the router's signals for the destination into its health and checks its circuit.
+     */
+    private boolean admit(NetworkPeer destination, String fingerprint) {
+        long now = System.currentTimeMillis();
+        boolean backlogged = false;
+        if(destination.getDid().getPublicKey().getAddress()!=null) {
+            // Router signals need the address; without it health rests on send outcomes alone
+            backlogged = backlogged(destination);
+            peerHealth.observe(fingerprint, backlogged, established(destination), unreachable(destination), now);
+        }
+        boolean allowed = peerHealth.allow(fingerprint, now);
+        syncPeerTable(fingerprint, backlogged);
+        return allowed;
+    }
+
+    void peerSucceeded(String fingerprint) {
+        peerHealth.recordSuccess(fingerprint);
+        syncPeerTable(fingerprint, false);
+    }
+
+    void peerFailed(String fingerprint, boolean timedOut) {
+        if(timedOut) {
+            peerHealth.recordTimeout(fingerprint, System.currentTimeMillis());
+        } else {
+            peerHealth.recordFailure(fingerprint, System.currentTimeMillis());
+        }
+        syncPeerTable(fingerprint, false);
+    }
+
+    /**
+     * @return true unless the peer's circuit is open; does not take a half-open probe
+     */
+    boolean peerAvailable(NetworkPeer networkPeer) {
+        if(networkPeer==null || networkPeer.getDid().getPublicKey().getFingerprint()==null) {
+            return false;
+        }
+        return peerHealth.available(networkPeer.getDid().getPublicKey().getFingerprint(), System.currentTimeMillis());
+    }
+
+    /**
+     * Reflects health in the peer table so discovery samples healthy peers more often.
+     */
+    private void syncPeerTable(String fingerprint, boolean backlogged) {
+        byte reach = I2PPeerTable.REACHABILITY_REACHABLE;
+        if(peerHealth.state(fingerprint)!=I2PPeerHealth.State.CLOSED) {
+            reach = I2PPeerTable.REACHABILITY_UNREACHABLE;
+        } else if(backlogged) {
+            reach = I2PPeerTable.REACHABILITY_BACKLOGGED;
+        }
+        peerTable.updateReachability(fingerprint, reach);
+        peerTable.updateWeight(fingerprint, (float)peerHealth.score(fingerprint));
+    }
+
+    private static NetworkPeer destination(Envelope envelope) {
+        if(!(envelope.getRoute() instanceof ExternalRoute)) {
+            return null;
+        }
+        NetworkPeer destination = ((ExternalRoute)envelope.getRoute()).getDestination();
+        if(destination==null || destination.getDid()==null || destination.getDid().getPublicKey()==null) {
+            return null;
+        }
+        return destination;
+    }
+
+    /**
+     * Sends straight to the I2P session, bypassing the journal and reliable delivery.
+     */
+    Boolean transmit(Envelope envelope) {
         LOG.fine("Send out Envelope over I2P...");
         NetworkClientSession session = establishSession(null, true);
         return session.send(envelope);
     }
 
+    /**
+     * Called by reliable delivery when an Envelope was acknowledged, or sent best-effort to a
+     * destination that does not acknowledge. A drained Envelope only now leaves the journal.
+     */
+    void delivered(Envelope envelope) {
+        releaseJournalRecord(envelope);
+    }
+
+    /**
+     * Called by reliable delivery when an Envelope was never acknowledged.
+     */
+    void deliveryFailed(Envelope envelope) {
+        NetworkPeer destination = destination(envelope);
+        if(destination!=null && destination.getDid().getPublicKey().getFingerprint()!=null) {
+            peerFailed(destination.getDid().getPublicKey().getFingerprint(), true);
+        }
+        envelope.getMessage().addErrorMessage("Not acknowledged by destination.");
+        correlator.fail(envelope.getId(), new IOException("Request "+envelope.getId()+" not acknowledged."));
+        deadLetter(envelope);
+        releaseJournalRecord(envelope);
+    }
+
+    private void releaseJournalRecord(Envelope envelope) {
+        Long handle = journalHandles.remove(envelope.getId());
+        I2POutboundJournal journal = outboundJournal;
+        if(handle!=null && journal!=null) {
+            journal.ack(handle);
+        }
+    }
+
+    /**
+     * Sends a request and completes the returned future with the reply carrying
+     * the request's id as its correlation id.
+     * @param envelope request; its id is the correlation id
+     * @param timeoutMs time to wait for a reply before completing with a TimeoutException
+     * @return future reply; cancel it to stop waiting
+     */
+    public CompletableFuture<Envelope> request(Envelope envelope, long timeoutMs) {
+        CompletableFuture<Envelope> reply = correlator.register(envelope.getId(), timeoutMs);
+        if(reply.isDone()) {
+            // Same id already in flight; sending again would make its reply ambiguous
+            return reply;
+        }
+        if(!sendOut(envelope)) {
+            // Not a peer outcome: transmit failures were recorded by sendOut, while a rejected
+            // or failed journal append never reached the peer
+            reply.completeExceptionally(new IOException("Unable to send request "+envelope.getId()));
+            return reply;
+        }
+        NetworkPeer destination = destination(envelope);
+        final String fingerprint = destination==null ? null : destination.getDid().getPublicKey().getFingerprint();
+        if(fingerprint!=null) {
+            reply.whenComplete((r, ex) -> {
+                if(r!=null) {
+                    peerSucceeded(fingerprint);
+                } else if(ex instanceof TimeoutException) {
+                    peerFailed(fingerprint, true);
+                } else if(!(ex instanceof IOException) && !(ex instanceof CancellationException)) {
+                    // Failed without an outcome; IOExceptions were recorded where raised and
+                    // a cancelled request says nothing about the peer
+                    peerFailed(fingerprint, false);
+                }
+            });
+        }
+        return reply;
+    }
+
+    /**
+     * Marks an Envelope as the reply to a request.
+     */
+    public static void correlate(Envelope reply, Envelope request) {
+        reply.addNVP(CORRELATION_ID, request.getId());
+    }
+
+    /**
+     * Handles an Envelope received from I2P. Signed Envelopes are verified on the verification
+     * pool first and dead-lettered if invalid. Replies to outstanding requests complete them;
+     * everything else is forwarded.
+     * @param envelope received Envelope
+     * @return boolean was handled
+     */
+    public Boolean receive(Envelope envelope) {
+        if(envelope.getRoute() instanceof ExternalRoute) {
+            NetworkPeer from = ((ExternalRoute)envelope.getRoute()).getOrigination();
+            if(from!=null && from.getDid()!=null && from.getDid().getPublicKey()!=null
+                    && from.getDid().getPublicKey().getFingerprint()!=null) {
+                peerSeen(from);
+            }
+        }
+        if(reliableDelivery!=null && !reliableDelivery.receive(envelope)) {
+            // Acknowledgement or duplicate
+            return true;
+        }
+        if(envelope.getValue(SIGNATURE)!=null && signatureVerifier!=null) {
+            // Verified on the pool; delivery continues there so this I/O thread is free again
+            CompletableFuture<Boolean> verified;
+            try {
+                verified = verifyInbound(Integer.parseInt(String.valueOf(envelope.getValue(SIGNATURE_SCHEME))),
+                        Base64.getDecoder().decode(String.valueOf(envelope.getValue(SIGNATURE_KEY))),
+                        signedBytes(envelope),
+                        Base64.getDecoder().decode(String.valueOf(envelope.getValue(SIGNATURE))));
+            } catch (IllegalArgumentException ex) {
+                rejectInbound(envelope, "Malformed signature: "+ex.getLocalizedMessage());
+                return true;
+            }
+            verified.whenComplete((valid, ex) -> {
+                if(Boolean.TRUE.equals(valid)) {
+                    deliverInbound(envelope);
+                } else {
+                    rejectInbound(envelope, ex==null ? "Invalid signature." : "Signature not verified: "+ex.getLocalizedMessage());
+                }
+            });
+            return true;
+        }
+        return deliverInbound(envelope);
+    }
+
+    /**
+     * Bytes an inbound signature covers: the Envelope id and its content, each length prefixed.
+     */
+    public static byte[] signedBytes(Envelope envelope) {
+        byte[] id = String.valueOf(envelope.getId()).getBytes(StandardCharsets.UTF_8);
+        byte[] content = String.valueOf(envelope.getContent()).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + id.length + content.length);
+        try(DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(id.length);
+            data.write(id);
+            data.writeInt(content.length);
+            data.write(content);
+        } catch (IOException ex) {
+            // Not thrown by an in-memory stream
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    private void rejectInbound(Envelope envelope, String reason) {
+        LOG.warning("Rejecting inbound Envelope: "+reason);
+        envelope.getMessage().addErrorMessage(reason);
+        deadLetter(envelope);
+    }
+
+    /**
+     * Completes the request an inbound reply answers or forwards the Envelope.
+     */
+    private Boolean deliverInbound(Envelope envelope) {
+        Object correlationId = envelope.getValue(CORRELATION_ID);
+        if(correlationId!=null) {
+            String id = String.valueOf(correlationId);
+            synchronized (inflightTimers) {
+                inflightTimers.remove(id);
+            }
+            if(correlator.complete(id, envelope)) {
+                return true;
+            }
+        }
+        return send(envelope);
+    }
+
+    private Boolean journal(Envelope envelope) {
+        String invalid = undeliverable(envelope);
+        if(invalid!=null) {
+            LOG.warning("Not queuing undeliverable Envelope: "+invalid);
+            envelope.getMessage().addErrorMessage(invalid);
+            return false;
+        }
+        LOG.fine("Queuing Envelope in outbound journal until connected...");
+        try {
+            return outboundJournal.append(envelope.toJSON().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOG.warning("Unable to queue Envelope in outbound journal: "+ex.getLocalizedMessage());
+            envelope.getMessage().addErrorMessage("Unable to queue for sending.");
+            return false;
+        }
+    }
+
+    /**
+     * Checks what the I2P session would reject no matter how often it is retried.
+     * @return reason the Envelope can never be sent over I2P or null if it can
+     */
+    private static String undeliverable(Envelope envelope) {
+        if(!(envelope.getRoute() instanceof ExternalRoute)) {
+            return "Route must be external.";
+        }
+        NetworkPeer destination = ((ExternalRoute)envelope.getRoute()).getDestination();
+        if(destination==null) {
+            return "Code:" + ExternalRoute.DESTINATION_PEER_REQUIRED+", Destination Peer Required.";
+        }
+        if(!Network.I2P.name().equals(destination.getNetwork())) {
+            return "Code:" + ExternalRoute.DESTINATION_PEER_WRONG_NETWORK+", Not meant for I2P Network.";
+        }
+        return null;
+    }
+
+    /**
+     * Sends messages queued in the outbound journal, oldest first, until the journal
+     * is empty or a send fails. A message is only removed once sent, or with reliable delivery
+     * once acknowledged, so unacknowledged messages are sent again after a restart. With
+     * reliable delivery draining stops while the destination's send window is full. Messages that can
+     * never be sent are dead-lettered and removed so they do not hold up the rest. Draining also
+     * stops while the destination's circuit is open; that and any other failure are treated as
+     * transient and retried on a later drain.
+     */
+    void drainOutbound() {
+        if(outboundJournal==null) {
+            return;
+        }
+        synchronized (drainLock) {
+            long drained = 0;
+            try {
+                byte[] record;
+                while(getNetworkState().networkStatus==NetworkStatus.CONNECTED
+                        && (record = outboundJournal.peek())!=null) {
+                    Envelope envelope = Envelope.documentFactory();
+                    try {
+                        envelope.fromJSON(new String(record, StandardCharsets.UTF_8));
+                    } catch (Exception ex) {
+                        LOG.warning("Dropping unreadable Envelope from outbound journal: "+ex.getLocalizedMessage());
+                        outboundJournal.commit();
+                        continue;
+                    }
+                    String invalid = undeliverable(envelope);
+                    if(invalid!=null) {
+                        LOG.warning("Dead-lettering undeliverable Envelope from outbound journal: "+invalid);
+                        envelope.getMessage().addErrorMessage(invalid);
+                        correlator.fail(envelope.getId(), new IOException("Request "+envelope.getId()+" undeliverable: "+invalid));
+                        deadLetter(envelope);
+                        outboundJournal.commit();
+                        continue;
+                    }
+                    if(reliableDelivery!=null && !reliableDelivery.hasRoom(envelope)) {
+                        // Leave it in the journal rather than in memory; drained again once acks open the window
+                        break;
+                    }
+                    NetworkPeer destination = destination(envelope);
+                    String fingerprint = destination==null ? null : destination.getDid().getPublicKey().getFingerprint();
+                    if(fingerprint!=null && !admit(destination, fingerprint)) {
+                        // Kept in the journal; a later drain retries once the circuit lets a probe through
+                        LOG.fine("Circuit to "+I2PPeerHealth.abbrev(fingerprint)+" open; pausing outbound journal.");
+                        break;
+                    }
+                    long handle = outboundJournal.take();
+                    if(reliableDelivery!=null) {
+                        // Acknowledged when reliable delivery reports it delivered
+                        journalHandles.put(envelope.getId(), handle);
+                    }
+                    boolean sent = deliver(envelope, fingerprint);
+                    if(!sent) {
+                        journalHandles.remove(envelope.getId());
+                        outboundJournal.rewind(handle);
+                        LOG.warning("Send failed while draining outbound journal; will retry later.");
+                        break;
+                    }
+                    if(reliableDelivery==null) {
+                        outboundJournal.ack(handle);
+                    }
+                    drained++;
+                }
+            } catch (IOException ex) {
+                LOG.warning("Unable to read outbound journal: "+ex.getLocalizedMessage());
+            }
+            if(drained > 0) {
+                LOG.info("Drained "+drained+" message(s) from outbound journal.");
+            }
+        }
+    }
+
+    I2PPeerTable getPeerTable() {
+        return peerTable;
+    }
+
+    /**
+     * Records a peer as seen now, adding it to the peer table if there is room.
+     * @param networkPeer peer with a fingerprint
+     * @return boolean was tracked
+     */
+    public Boolean peerSeen(NetworkPeer networkPeer) {
+        if(networkPeer==null || networkPeer.getDid().getPublicKey().getFingerprint()==null) {
+            LOG.warning("Network Peer with fingerprint is required to track it.");
+            return false;
+        }
+        byte reach = I2PPeerTable.REACHABILITY_REACHABLE;
+        String country = I2PPeerTable.COUNTRY_UNKNOWN;
+        // Router lookups need the address and warn without it; peers seen inbound often lack one
+        if(networkPeer.getDid().getPublicKey().getAddress()!=null) {
+            if(unreachable(networkPeer)) {
+                reach = I2PPeerTable.REACHABILITY_UNREACHABLE;
+            } else if(backlogged(networkPeer)) {
+                reach = I2PPeerTable.REACHABILITY_BACKLOGGED;
+            }
+            country = country(networkPeer);
+        }
+        return peerTable.put(networkPeer, country, reach, System.currentTimeMillis(), 1.0f);
+    }
+
+    /**
+     * Adds peers known to the service to the peer table without marking them as seen.
+     * @return number of peers in the table
+     */
+    int syncKnownPeers() {
+        List<NetworkPeer> known = getPeers();
+        if(known!=null) {
+            for(NetworkPeer networkPeer : known) {
+                if(networkPeer==null || networkPeer.getDid().getPublicKey().getFingerprint()==null
+                        || peerTable.contains(networkPeer.getDid().getPublicKey().getFingerprint())) {
+                    continue;
+                }
+                peerTable.put(networkPeer, I2PPeerTable.COUNTRY_UNKNOWN, I2PPeerTable.REACHABILITY_UNKNOWN, 0L, 1.0f);
+            }
+        }
+        return peerTable.size();
+    }
+
+    /**
+     * Verifies an inbound signature on the verification pool, keeping the calling I/O thread free.
+     * The pool runs unless ra.i2p.verify.enabled is false.
+     * @param scheme one of the signature scheme constants, e.g. ECDH256ECDSA256
+     * @param publicKey X.509 encoded public key of the signer
+     * @param content signed content
+     * @param signature signature over content
+     * @return future completed with true if the signature is valid
+     */
+    public CompletableFuture<Boolean> verifyInbound(int scheme, byte[] publicKey, byte[] content, byte[] signature) {
+        if(signatureVerifier==null) {
+            CompletableFuture<Boolean> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("Signature verification not enabled."));
+            return f;
+        }
+        return signatureVerifier.verify(new I2PSignatureVerifier.Signed(scheme, publicKey, content, signature));
+    }
+
     public File getDirectory() {
         return i2pDir;
     }
 
     private void updateHiddenMode(boolean hiddenMode) {
         String hiddenModeStr = hiddenMode?"true":"false";
-//        if(!(getNetworkState().params.get(Router.PROP_HIDDEN)).equals(hiddenModeStr)) {
-//            // Hidden mode changed so change for Router and restart
-//            this.getNetworkState().params.put(Router.PROP_HIDDEN, hiddenModeStr);
-//            if (router.saveConfig(Router.PROP_HIDDEN, hiddenModeStr)) {
-//                restart();
-//            } else {
-//                LOG.warning("Unable to update " + Router.PROP_HIDDEN);
-//            }
-//        }
+        Map<String,String> updates = new HashMap<>();
+        updates.put(I2PConfigDelta.ROUTER_HIDDEN_MODE, hiddenModeStr);
+        updates.put("ra.i2p.hidden", hiddenModeStr);
+        applyConfig(updates);
     }
 
     private void updateSharePercentage(int sharePercentage) {
-        if(!(getNetworkState().params.get("router.sharePercentage")).equals(String.valueOf(sharePercentage))) {
-            // Share Percentage changed so change for Router and restart
-//            this.getNetworkState().params.put(Router.PROP_HIDDEN, String.valueOf(sharePercentage));
-//            if (router.saveConfig(Router.PROP_HIDDEN, String.valueOf(sharePercentage))) {
-//                restart();
-//            } else {
-                LOG.warning("Unable to update router.sharePercentage");
-//            }
-        }
+        applyConfig(Collections.singletonMap(I2PConfigDelta.ROUTER_SHARE_PERCENTAGE, String.valueOf(sharePercentage)));
     }
 
     private void updateGeoIPEnablement(boolean enableGeoIP) {
         String enableGeoIPStr = enableGeoIP?"true":"false";
-//        if(!(getNetworkState().params.get("routerconsole.geoip.enable")).equals(enableGeoIPStr)) {
-//            // Hidden mode changed so change for Router and restart
-//            this.getNetworkState().params.put("routerconsole.geoip.enable", enableGeoIPStr);
-//            if (router.saveConfig("routerconsole.geoip.enable", enableGeoIPStr)) {
-//                restart();
-//            } else {
-                LOG.warning("Unable to update routerconsole.geoip.enable");
-//            }
-//        }
+        applyConfig(Collections.singletonMap(I2PConfigDelta.ROUTER_GEOIP_ENABLE, enableGeoIPStr));
+    }
+
+    /**
+     * Applies setting changes to the running service without restarting it.
+     * Router settings (hidden mode, share percentage, GeoIP) are recorded in the config and
+     * network state params for whoever controls the router; this service has no handle on the
+     * router, so they are not pushed to it and no session is recycled for them. I2CP tunnel
+     * options are updated on open sessions in place. Only open sessions using another changed
+     * I2CP option are recycled, each replaced by a new session before the old one is closed.
+     * @param updates setting name to new value
+     * @return boolean any setting changed
+     */
+    public Boolean applyConfig(Map<String,String> updates) {
+        if(config==null) {
+            LOG.warning("I2P Service not started; unable to apply config.");
+            return false;
+        }
+        I2PConfigDelta delta = I2PConfigDelta.between(config, updates);
+        if(delta.isEmpty()) {
+            return false;
+        }
+        for(Map.Entry<String,String> e : delta.all().entrySet()) {
+            config.setProperty(e.getKey(), e.getValue());
+            if(I2PConfigDelta.isRouterSetting(e.getKey())) {
+                getNetworkState().params.put(e.getKey(), e.getValue());
+            }
+        }
+        if(!delta.live().isEmpty()) {
+            LOG.info("Applying in place: "+delta.live().keySet());
+            for(I2PSession session : sessions.values()) {
+                session.updateOptions(delta.live());
+            }
+        }
+        if(delta.requiresSessionRebuild()) {
+            recycleSessions(delta.session());
+        }
+        return true;
+    }
+
+    private void recycleSessions(Map<String,String> changed) {
+        for(Map.Entry<String,I2PSession> e : new ArrayList<>(sessions.entrySet())) {
+            I2PSession old = e.getValue();
+            if(!old.affectedBy(changed)) {
+                continue;
+            }
+            LOG.info("Recycling I2P Session "+e.getKey()+" for: "+changed.keySet());
+            I2PSession session = new I2PSession(this);
+            session.init(config);
+            session.open(null);
+            if(!session.connect()) {
+                LOG.warning("Unable to connect replacement session "+e.getKey()+"; keeping current session.");
+                continue;
+            }
+            sessions.put(e.getKey(), session);
+            old.disconnect();
+            old.close();
+        }
     }
 
     public boolean start(Properties p) {
@@ -220,6 +731,98 @@ public final class I2PAndroidService extends NetworkService {
             return false;
         }
 
+        int maxPeers = DEFAULT_MAX_PEERS;
+        if(config.getProperty("ra.i2p.maxPeers")!=null) {
+            maxPeers = Integer.parseInt(config.getProperty("ra.i2p.maxPeers"));
+        }
+        peerTable = new I2PPeerTable(maxPeers);
+
+        if(!"false".equals(config.getProperty("ra.i2p.verify.enabled"))) {
+            int verifyThreads = Runtime.getRuntime().availableProcessors();
+            if(config.getProperty("ra.i2p.verify.threads")!=null) {
+                verifyThreads = Integer.parseInt(config.getProperty("ra.i2p.verify.threads"));
+            }
+            int verifyCacheSize = I2PSignatureVerifier.DEFAULT_CACHE_SIZE;
+            if(config.getProperty("ra.i2p.verify.cacheSize")!=null) {
+                verifyCacheSize = Integer.parseInt(config.getProperty("ra.i2p.verify.cacheSize"));
+            }
+            signatureVerifier = new I2PSignatureVerifier(verifyThreads, verifyCacheSize);
+            signatureVerifier.start();
+        }
+
+        if("true".equals(config.getProperty("ra.i2p.reliable"))) {
+            int window = I2PReliableDelivery.DEFAULT_WINDOW;
+            if(config.getProperty("ra.i2p.reliable.window")!=null) {
+                window = Integer.parseInt(config.getProperty("ra.i2p.reliable.window"));
+            }
+            int maxRetries = I2PReliableDelivery.DEFAULT_MAX_RETRIES;
+            if(config.getProperty("ra.i2p.reliable.maxRetries")!=null) {
+                maxRetries = Integer.parseInt(config.getProperty("ra.i2p.reliable.maxRetries"));
+            }
+            reliableDelivery = new I2PReliableDelivery(new I2PReliableDelivery.Transport() {
+                @Override
+                public NetworkPeer localPeer() {
+                    return getNetworkState().localPeer;
+                }
+
+                @Override
+                public Boolean transmit(Envelope envelope) {
+                    return I2PAndroidService.this.transmit(envelope);
+                }
+
+                @Override
+                public void delivered(Envelope envelope) {
+                    I2PAndroidService.this.delivered(envelope);
+                }
+
+                @Override
+                public void deliveryFailed(Envelope envelope) {
+                    I2PAndroidService.this.deliveryFailed(envelope);
+                }
+
+                @Override
+                public void peerSucceeded(String fingerprint) {
+                    I2PAndroidService.this.peerSucceeded(fingerprint);
+                }
+
+                @Override
+                public void windowOpened() {
+                    drainOutbound();
+                }
+            }, window, maxRetries);
+            reliableDelivery.start();
+        }
+
+        if(config.getProperty("ra.i2p.directory")!=null) {
+            i2pDir = new File(config.getProperty("ra.i2p.directory"));
+        }
+        if("true".equals(config.getProperty("ra.i2p.journal.enabled"))) {
+            if(i2pDir==null) {
+                LOG.warning("Outbound journal enabled but no ra.i2p.directory set; journal disabled.");
+            } else {
+                int segmentSize = I2POutboundJournal.DEFAULT_SEGMENT_SIZE;
+                if(config.getProperty("ra.i2p.journal.segmentSize")!=null) {
+                    segmentSize = Integer.parseInt(config.getProperty("ra.i2p.journal.segmentSize"));
+                }
+                I2POutboundJournal journal = new I2POutboundJournal(new File(i2pDir, "outbound"), segmentSize,
+                        "true".equals(config.getProperty("ra.i2p.journal.sync")));
+                try {
+                    journal.open();
+                    outboundJournal = journal;
+                    // Picks up the journal once the network is CONNECTED again without waiting for new traffic
+                    journalDrainer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "I2POutboundJournalDrainer");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    journalDrainer.scheduleWithFixedDelay(this::drainIfConnected,
+                            JOURNAL_DRAIN_INTERVAL_MS, JOURNAL_DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                } catch (IOException ex) {
+                    LOG.warning("Unable to open outbound journal: "+ex.getLocalizedMessage());
+                }
+            }
+        }
+
         // TODO: Verify Client is available
 
         updateStatus(ServiceStatus.RUNNING);
@@ -248,6 +851,20 @@ public final class I2PAndroidService extends NetworkService {
         updateStatus(ServiceStatus.SHUTTING_DOWN);
         LOG.info("I2P router stopping...");
         // TODO: Signal to I2P Router to shutdown
+        if(reliableDelivery!=null) {
+            reliableDelivery.shutdown();
+        }
+        correlator.cancelAll();
+        if(signatureVerifier!=null) {
+            signatureVerifier.shutdown();
+        }
+        if(journalDrainer!=null) {
+            journalDrainer.shutdownNow();
+            journalDrainer = null;
+        }
+        if(outboundJournal!=null) {
+            outboundJournal.close();
+        }
         updateStatus(ServiceStatus.SHUTDOWN);
         LOG.info("I2P router stopped.");
         return true;
@@ -258,6 +875,20 @@ public final class I2PAndroidService extends NetworkService {
         updateStatus(ServiceStatus.GRACEFULLY_SHUTTING_DOWN);
         LOG.info("I2P router gracefully stopping...");
         // TODO: Signal to I2P Router to gracefully shutdown
+        if(reliableDelivery!=null) {
+            reliableDelivery.shutdown();
+        }
+        correlator.cancelAll();
+        if(signatureVerifier!=null) {
+            signatureVerifier.shutdown();
+        }
+        if(journalDrainer!=null) {
+            journalDrainer.shutdownNow();
+            journalDrainer = null;
+        }
+        if(outboundJournal!=null) {
+            outboundJournal.close();
+        }
         updateStatus(ServiceStatus.GRACEFULLY_SHUTDOWN);
         LOG.info("I2P router gracefully stopped.");
         return true;
@@ -371,10 +1002,22 @@ public final class I2PAndroidService extends NetworkService {
 //            LOG.info("I2P Router Status changed to: "+i2pRouterStatus.name());
 //            reportRouterStatus();
 //        }
+        drainIfConnected();
+    }
+
+    private void drainIfConnected() {
+        try {
+            if(getNetworkState().networkStatus==NetworkStatus.CONNECTED
+                    && outboundJournal!=null && outboundJournal.hasPending()) {
+                drainOutbound();
+            }
+        } catch (Exception ex) {
+            LOG.warning("Unable to drain outbound journal: "+ex.getLocalizedMessage());
+        }
     }
 
     private Integer activePeersCount() {
-        return 0;
+        return peerTable.countSeenSince(System.currentTimeMillis() - ACTIVE_PEER_WINDOW_MS);
     }
 
     private Boolean unreachable(NetworkPeer networkPeer) {
@@ -0,0 +1,85 @@
+package ra.i2p.android;
+
+import java.util.*;
+
+/**
+ * Compares current and updated settings and classifies how each changed setting
+ * must be applied to the running service.
+ */
+final class I2PConfigDelta {
+
+    public static final String ROUTER_HIDDEN_MODE = "router.hiddenMode";
+    public static final String ROUTER_SHARE_PERCENTAGE = "router.sharePercentage";
+    public static final String ROUTER_GEOIP_ENABLE = "routerconsole.geoip.enable";
+
+    enum Scope {
+        /** Only stored; read by the service when next needed. */
+        SERVICE,
+        /** Recorded in the network state and open sessions in place; nothing is rebuilt. */
+        LIVE,
+        /** Open sessions must be recycled to pick it up. */
+        SESSION
+    }
+
+    private final Map<String,String> live = new HashMap<>();
+    private final Map<String,String> session = new HashMap<>();
+    private final Map<String,String> service = new HashMap<>();
+
+    private I2PConfigDelta() {}
+
+    /**
+     * Builds the delta of updates that differ from the current settings.
+     */
+    static I2PConfigDelta between(Properties current, Map<String,String> updates) {
+        I2PConfigDelta delta = new I2PConfigDelta();
+        for(Map.Entry<String,String> e : updates.entrySet()) {
+            if(e.getValue()==null || e.getValue().equals(current.getProperty(e.getKey()))) {
+                continue;
+            }
+            switch(scope(e.getKey())) {
+                case LIVE: delta.live.put(e.getKey(), e.getValue()); break;
+                case SESSION: delta.session.put(e.getKey(), e.getValue()); break;
+                default: delta.service.put(e.getKey(), e.getValue());
+            }
+        }
+        return delta;
+    }
+
+    static Scope scope(String key) {
+        if(isRouterSetting(key)) {
+            // Router-wide (hidden mode only changes what the router publishes); sessions are unaffected
+            return Scope.LIVE;
+        }
+        if(I2PSession.isI2CPParameter(key)) {
+            return I2PSession.isTunnelParameter(key) ? Scope.LIVE : Scope.SESSION;
+        }
+        return Scope.SERVICE;
+    }
+
+    static boolean isRouterSetting(String key) {
+        return key.startsWith("router.") || key.startsWith("routerconsole.");
+    }
+
+    boolean isEmpty() {
+        return live.isEmpty() && session.isEmpty() && service.isEmpty();
+    }
+
+    Map<String,String> all() {
+        Map<String,String> all = new HashMap<>(service);
+        all.putAll(live);
+        all.putAll(session);
+        return all;
+    }
+
+    Map<String,String> live() {
+        return live;
+    }
+
+    Map<String,String> session() {
+        return session;
+    }
+
+    boolean requiresSessionRebuild() {
+        return !session.isEmpty();
+    }
+}
@@ -7,13 +7,18 @@ import ra.common.tasks.BaseTask;
 import ra.common.tasks.TaskRunner;
 
 import java.util.Date;
+import java.util.Random;
 import java.util.logging.Logger;
 
 public class I2PNetworkDiscovery extends BaseTask {
 
     private static final Logger LOG = Logger.getLogger(I2PNetworkDiscovery.class.getName());
 
+    private static final int DISCOVERY_SAMPLE_SIZE = 100;
+    private static final int PEER_SELECTION_ATTEMPTS = 5;
+
     private I2PAndroidService service;
+    private final Random random = new Random();
 
     public I2PNetworkDiscovery(I2PAndroidService service, TaskRunner taskRunner) {
         super(I2PNetworkDiscovery.class.getSimpleName(), taskRunner);
@@ -22,21 +27,47 @@ public class I2PNetworkDiscovery extends BaseTask {
 
     @Override
     public Boolean execute() {
+        I2PPeerTable peerTable = service.getPeerTable();
         if(service.getNetworkState().networkStatus == NetworkStatus.CONNECTED
-                && service.getNumberPeers() < service.getMaxPeers()) {
+                && !peerTable.isFull()) {
             if(service.inflightTimers.size()>0) {
                 LOG.warning(service.inflightTimers.size()+" in-flight timer(s) timed out.");
                 synchronized (service.inflightTimers) {
                     service.inflightTimers.clear();
                 }
             }
-            if(service.getNumberPeers()==0) {
-                LOG.warning("Must have a peer to start the discovery process. Waiting for a peer to connect...");
+            if(service.syncKnownPeers()==0) {
+                if(service.getNumberPeers()==0) {
+                    LOG.warning("Must have a peer to start the discovery process. Waiting for a peer to connect...");
+                } else {
+                    // Known peers without fingerprints can not be tracked by the table; use them directly
+                    NetworkPeer toPeer = service.getRandomPeer();
+                    Envelope e = Envelope.documentFactory();
+                    service.inflightTimers.put(e.getId(), new Date().getTime());
+                    e.addContent(service.getPeers());
+                    e.addExternalRoute(I2PAndroidService.class, I2PAndroidService.OPERATION_SEND, service.getNetworkState().localPeer, toPeer);
+                    e.mark("NetOpReq");
+                    service.sendOut(e);
+                }
             } else {
-                NetworkPeer toPeer = service.getRandomPeer();
+                NetworkPeer toPeer = null;
+                // Reroute around peers whose circuit is open
+                for(int i=0; i<PEER_SELECTION_ATTEMPTS && toPeer==null; i++) {
+                    NetworkPeer candidate = peerTable.randomPeer(random, I2PPeerTable.REACHABILITY_REACHABLE);
+                    if(candidate==null) {
+                        candidate = peerTable.weightedRandomPeer(random);
+                    }
+                    if(service.peerAvailable(candidate)) {
+                        toPeer = candidate;
+                    }
+                }
+                if(toPeer==null) {
+                    LOG.info("No available peer to send discovery request to.");
+                    return true;
+                }
                 Envelope e = Envelope.documentFactory();
                 service.inflightTimers.put(e.getId(), new Date().getTime());
-                e.addContent(service.getPeers());
+                e.addContent(peerTable.randomPeers(random, DISCOVERY_SAMPLE_SIZE));
                 e.addExternalRoute(I2PAndroidService.class, I2PAndroidService.OPERATION_SEND, service.getNetworkState().localPeer, toPeer);
                 e.mark("NetOpReq");
                 service.sendOut(e);
@@ -0,0 +1,464 @@
+package ra.i2p.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped store-and-forward log for outbound messages.
+ *
+ * Records are appended to fixed size segment files as [length][crc32][payload]. Segments are
+ * memory mapped so an append is a memory copy that survives the process being killed; set sync
+ * to also force each append to the device.
+ *
+ * Records are taken for sending and acknowledged once delivered. Only the position after the
+ * oldest contiguous run of acknowledged records is durable: it is kept in a small mapped cursor
+ * file with two CRC-checked slots written alternately so a torn cursor update falls back to the
+ * previous position. Records taken but not acknowledged are read again after a restart
+ * (at-least-once). Fully acknowledged segments are deleted in the background.
+ */
+final class I2POutboundJournal {
+
+    private static final Logger LOG = Logger.getLogger(I2POutboundJournal.class.getName());
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final int SEALED = -1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursor";
+    private static final int CURSOR_SLOT_SIZE = 24;
+
+    private final File dir;
+    private final int segmentSize;
+    private final boolean sync;
+
+    private final Map<Long,MappedByteBuffer> segments = new HashMap<>();
+    private MappedByteBuffer cursor;
+    private long cursorVersion = 0;
+
+    private long writeSegment;
+    private int writeOffset;
+    private long readSegment;
+    private int readOffset;
+    private int peekedLength = -1;
+    private long pending = 0;
+    // Durable position: everything before it has been acknowledged
+    private long ackSegment;
+    private int ackOffset;
+    // Records taken and not yet acknowledged by handle, oldest first
+    private final TreeMap<Long,Taken> taken = new TreeMap<>();
+    private long nextHandle = 0;
+
+    private ExecutorService compactor;
+
+    I2POutboundJournal(File dir, int segmentSize, boolean sync) {
+        this.dir = dir;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+        this.sync = sync;
+    }
+
+    /**
+     * Opens the journal, recovering the read cursor and the write position from disk.
+     */
+    public synchronized void open() throws IOException {
+        if(!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create outbound journal directory: "+dir.getAbsolutePath());
+        }
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "I2POutboundJournalCompactor");
+            t.setDaemon(true);
+            return t;
+        });
+        cursor = map(new File(dir, CURSOR_FILE), CURSOR_SLOT_SIZE * 2);
+        List<Long> ids = segmentIds();
+        if(ids.isEmpty()) {
+            writeSegment = 0;
+            writeOffset = 0;
+            readSegment = 0;
+            readOffset = 0;
+            ackSegment = 0;
+            ackOffset = 0;
+            segment(0);
+            saveCursor();
+            return;
+        }
+        long first = ids.get(0);
+        writeSegment = ids.get(ids.size()-1);
+        writeOffset = recoverWriteOffset(segment(writeSegment));
+        loadCursor();
+        if(ackSegment < first || ackSegment > writeSegment) {
+            ackSegment = first;
+            ackOffset = 0;
+        }
+        readSegment = ackSegment;
+        readOffset = ackOffset;
+        pending = countPending();
+        compact();
+        LOG.info("Outbound journal opened with "+pending+" pending message(s).");
+    }
+
+    /**
+     * @return true if records are waiting to be taken
+     */
+    public synchronized boolean hasPending() {
+        return pending > 0;
+    }
+
+    public synchronized long pending() {
+        return pending;
+    }
+
+    /**
+     * @return number of records taken and not yet acknowledged
+     */
+    public synchronized int unacknowledged() {
+        return taken.size();
+    }
+
+    /**
+     * Appends a record to the end of the journal.
+     * @return false if the record is larger than a segment
+     */
+    public synchronized boolean append(byte[] payload) throws IOException {
+        if(payload.length + HEADER_SIZE + 4 > segmentSize) {
+            LOG.warning("Record of "+payload.length+" bytes too large for journal segment of "+segmentSize+" bytes.");
+            return false;
+        }
+        MappedByteBuffer buf = segment(writeSegment);
+        if(writeOffset + HEADER_SIZE + payload.length + 4 > segmentSize) {
+            // Seal current segment and roll over; the trailing 4 bytes are always reserved for the seal
+            buf.putInt(writeOffset, SEALED);
+            if(sync) buf.force();
+            writeSegment++;
+            writeOffset = 0;
+            buf = segment(writeSegment);
+        }
+        // Payload and crc first, length last, so a partially written record is never seen as complete
+        ByteBuffer out = buf.duplicate();
+        ((Buffer)out).position(writeOffset + HEADER_SIZE); // Buffer cast keeps Java 8/Android linkage
+        out.put(payload);
+        buf.putInt(writeOffset + 4, crc(payload));
+        buf.putInt(writeOffset, payload.length);
+        if(sync) buf.force();
+        writeOffset += HEADER_SIZE + payload.length;
+        pending++;
+        return true;
+    }
+
+    /**
+     * Returns the oldest record not yet taken without taking it.
+     * @return payload or null when the journal is drained
+     */
+    public synchronized byte[] peek() throws IOException {
+        while(true) {
+            if(readSegment == writeSegment && readOffset >= writeOffset) {
+                peekedLength = -1;
+                return null;
+            }
+            MappedByteBuffer buf = segment(readSegment);
+            int length = readOffset + HEADER_SIZE > segmentSize ? SEALED : buf.getInt(readOffset);
+            if(length <= 0 || readOffset + HEADER_SIZE + length > segmentSize) {
+                if(readSegment == writeSegment) {
+                    peekedLength = -1;
+                    return null;
+                }
+                nextReadSegment();
+                continue;
+            }
+            byte[] payload = read(buf, readOffset, length);
+            if(crc(payload) != buf.getInt(readOffset + 4)) {
+                LOG.warning("Corrupt record in outbound journal segment "+readSegment+" at "+readOffset+"; skipping rest of segment.");
+                if(readSegment == writeSegment) {
+                    peekedLength = -1;
+                    return null;
+                }
+                nextReadSegment();
+                continue;
+            }
+            peekedLength = length;
+            return payload;
+        }
+    }
+
+    /**
+     * Takes and acknowledges the record returned by the last call to peek.
+     */
+    public synchronized void commit() {
+        long handle = take();
+        if(handle >= 0) {
+            ack(handle);
+        }
+    }
+
+    /**
+     * Takes the record returned by the last call to peek so the next peek returns the one after it.
+     * The record stays in the journal until acknowledged.
+     * @return handle to acknowledge or rewind the record with, -1 if nothing was peeked
+     */
+    public synchronized long take() {
+        if(peekedLength < 0) {
+            return -1;
+        }
+        long handle = nextHandle++;
+        Taken t = new Taken(readSegment, readOffset);
+        readOffset += HEADER_SIZE + peekedLength;
+        t.endOffset = readOffset;
+        taken.put(handle, t);
+        peekedLength = -1;
+        if(pending > 0) pending--;
+        return handle;
+    }
+
+    /**
+     * Puts back the most recently taken record, e.g. because it could not be sent, so it is
+     * returned by the next peek.
+     * @return false if the handle is not the most recently taken record
+     */
+    public synchronized boolean rewind(long handle) {
+        if(taken.isEmpty() || taken.lastKey()!=handle) {
+            return false;
+        }
+        Taken t = taken.remove(handle);
+        readSegment = t.segment;
+        readOffset = t.offset;
+        peekedLength = -1;
+        pending++;
+        return true;
+    }
+
+    /**
+     * Acknowledges a taken record as delivered. The durable position moves past it once all
+     * records taken before it are acknowledged too.
+     */
+    public synchronized void ack(long handle) {
+        Taken t = taken.get(handle);
+        if(t==null || t.acked) {
+            return;
+        }
+        t.acked = true;
+        long segmentBefore = ackSegment;
+        boolean moved = false;
+        while(!taken.isEmpty() && taken.firstEntry().getValue().acked) {
+            Taken first = taken.pollFirstEntry().getValue();
+            ackSegment = first.segment;
+            ackOffset = first.endOffset;
+            moved = true;
+        }
+        if(moved && taken.isEmpty()) {
+            // Nothing outstanding: whatever was skipped up to the read position is done too
+            ackSegment = readSegment;
+            ackOffset = readOffset;
+        }
+        if(moved) {
+            saveCursor();
+            if(ackSegment > segmentBefore) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Deletes segments that have been fully acknowledged.
+     */
+    public synchronized void compact() {
+        final long before = Math.min(ackSegment, readSegment);
+        segments.keySet().removeIf(id -> id < before);
+        if(compactor==null) {
+            return;
+        }
+        compactor.execute(() -> {
+            for(Long id : segmentIds()) {
+                if(id < before && !segmentFile(id).delete()) {
+                    LOG.warning("Unable to delete consumed outbound journal segment "+id);
+                }
+            }
+        });
+    }
+
+    public synchronized void close() {
+        if(cursor!=null) {
+            cursor.force();
+        }
+        for(MappedByteBuffer buf : segments.values()) {
+            buf.force();
+        }
+        segments.clear();
+        if(compactor!=null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+    }
+
+    private void nextReadSegment() {
+        readSegment++;
+        readOffset = 0;
+        if(taken.isEmpty()) {
+            // Nothing outstanding in the segments left behind
+            ackSegment = readSegment;
+            ackOffset = 0;
+            saveCursor();
+            compact();
+        }
+    }
+
+    private int recoverWriteOffset(MappedByteBuffer buf) {
+        int offset = 0;
+        while(offset + HEADER_SIZE <= segmentSize) {
+            int length = buf.getInt(offset);
+            if(length == 0 || length == SEALED) {
+                break;
+            }
+            if(length < 0 || offset + HEADER_SIZE + length > segmentSize || !validAt(buf, offset, length)) {
+                LOG.warning("Truncating torn record in outbound journal segment "+writeSegment+" at "+offset);
+                for(int i=offset; i<segmentSize; i++) {
+                    buf.put(i, (byte)0);
+                }
+                buf.force();
+                break;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private boolean validAt(MappedByteBuffer buf, int offset, int length) {
+        return crc(read(buf, offset, length)) == buf.getInt(offset + 4);
+    }
+
+    private static byte[] read(MappedByteBuffer buf, int offset, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer in = buf.duplicate();
+        ((Buffer)in).position(offset + HEADER_SIZE);
+        in.get(payload);
+        return payload;
+    }
+
+    private long countPending() throws IOException {
+        long count = 0;
+        long seg = ackSegment;
+        int off = ackOffset;
+        while(true) {
+            if(seg == writeSegment && off >= writeOffset) break;
+            if(!segmentFile(seg).exists()) {
+                if(seg >= writeSegment) break;
+                seg++;
+                off = 0;
+                continue;
+            }
+            MappedByteBuffer buf = segment(seg);
+            int length = off + HEADER_SIZE > segmentSize ? SEALED : buf.getInt(off);
+            if(length <= 0 || off + HEADER_SIZE + length > segmentSize) {
+                if(seg >= writeSegment) break;
+                seg++;
+                off = 0;
+                continue;
+            }
+            count++;
+            off += HEADER_SIZE + length;
+        }
+        return count;
+    }
+
+    private void saveCursor() {
+        cursorVersion++;
+        int base = (int)(cursorVersion % 2) * CURSOR_SLOT_SIZE;
+        cursor.putLong(base + 8, ackSegment);
+        cursor.putInt(base + 16, ackOffset);
+        cursor.putInt(base + 20, cursorCrc(cursorVersion, ackSegment, ackOffset));
+        cursor.putLong(base, cursorVersion);
+        if(sync) cursor.force();
+    }
+
+    private void loadCursor() {
+        cursorVersion = 0;
+        ackSegment = -1;
+        ackOffset = 0;
+        for(int slot=0; slot<2; slot++) {
+            int base = slot * CURSOR_SLOT_SIZE;
+            long version = cursor.getLong(base);
+            long seg = cursor.getLong(base + 8);
+            int off = cursor.getInt(base + 16);
+            if(version > cursorVersion && cursor.getInt(base + 20) == cursorCrc(version, seg, off)) {
+                cursorVersion = version;
+                ackSegment = seg;
+                ackOffset = off;
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(long id) throws IOException {
+        MappedByteBuffer buf = segments.get(id);
+        if(buf==null) {
+            buf = map(segmentFile(id), segmentSize);
+            segments.put(id, buf);
+        }
+        return buf;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // Mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> segmentIds() {
+        List<Long> ids = new ArrayList<>();
+        String[] names = dir.list();
+        if(names!=null) {
+            for(String name : names) {
+                if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        LOG.warning("Ignoring unexpected file in outbound journal: "+name);
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static final class Taken {
+        final long segment;
+        final int offset;
+        int endOffset;
+        boolean acked = false;
+
+        Taken(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int)crc.getValue();
+    }
+
+    private static int cursorCrc(long version, long seg, int off) {
+        CRC32 crc = new CRC32();
+        for(int i=56; i>=0; i-=8) crc.update((int)(version >>> i));
+        for(int i=56; i>=0; i-=8) crc.update((int)(seg >>> i));
+        for(int i=24; i>=0; i-=8) crc.update(off >>> i);
+        return (int)crc.getValue();
+    }
+}
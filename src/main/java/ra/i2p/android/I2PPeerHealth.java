@@ -0,0 +1,176 @@
+package ra.i2p.android;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Health score and circuit breaker per destination peer, keyed by fingerprint.
+ *
+ * The score is an exponentially weighted average of send outcomes in [0,1], nudged by the
+ * router's backlogged and established signals. A circuit opens when the peer is reported
+ * unreachable, after consecutive failures, or when the score falls too low; sends to it
+ * then fail fast. After the open interval one probe is let through (half-open): success
+ * closes the circuit, failure re-opens it with a doubled interval. A probe whose outcome is
+ * never reported is given up after another open interval and a new probe let through.
+ */
+final class I2PPeerHealth {
+
+    private static final Logger LOG = Logger.getLogger(I2PPeerHealth.class.getName());
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int MAX_TRACKED = 10000;
+    private static final double ALPHA = 0.2;
+    private static final double OPEN_BELOW_SCORE = 0.2;
+    private static final int OPEN_AFTER_FAILURES = 5;
+    private static final double TIMEOUT_WEIGHT = 2.0;
+    private static final double BACKLOGGED_PENALTY = 0.05;
+    private static final double ESTABLISHED_BONUS = 0.02;
+    private static final long INITIAL_OPEN_MS = 30 * 1000L; // 30 seconds
+    private static final long MAX_OPEN_MS = 30 * 60 * 1000L; // 30 minutes
+
+    private static final class Health {
+        double score = 1.0;
+        int consecutiveFailures = 0;
+        State state = State.CLOSED;
+        long openedAt = 0;
+        long openMs = INITIAL_OPEN_MS;
+        boolean probing = false;
+        long probeStartedAt = 0;
+    }
+
+    private final Map<String,Health> peers = new LinkedHashMap<String,Health>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Health> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    /**
+     * Whether a send to the peer may proceed now. Moves an expired open circuit to half-open
+     * and lets a single probe through.
+     */
+    public synchronized boolean allow(String fingerprint, long now) {
+        Health h = peers.get(fingerprint);
+        if(h==null || h.state==State.CLOSED) {
+            return true;
+        }
+        if(h.state==State.OPEN) {
+            if(now - h.openedAt < h.openMs) {
+                return false;
+            }
+            h.state = State.HALF_OPEN;
+            h.probing = false;
+        }
+        if(h.probing && now - h.probeStartedAt < h.openMs) {
+            return false;
+        }
+        h.probing = true;
+        h.probeStartedAt = now;
+        LOG.info("Probing peer "+abbrev(fingerprint)+" (circuit half-open).");
+        return true;
+    }
+
+    /**
+     * Same as allow without taking the half-open probe; used when choosing between peers.
+     */
+    public synchronized boolean available(String fingerprint, long now) {
+        Health h = peers.get(fingerprint);
+        if(h==null || h.state==State.CLOSED) {
+            return true;
+        }
+        if(h.state==State.OPEN) {
+            return now - h.openedAt >= h.openMs;
+        }
+        return !h.probing || now - h.probeStartedAt >= h.openMs;
+    }
+
+    /**
+     * Folds the router's view of the peer into its health.
+     */
+    public synchronized void observe(String fingerprint, boolean backlogged, boolean established, boolean unreachable, long now) {
+        Health h = health(fingerprint);
+        if(unreachable) {
+            if(h.state==State.CLOSED) {
+                open(fingerprint, h, now, "reported unreachable");
+            }
+            return;
+        }
+        if(backlogged) {
+            h.score = Math.max(0.0, h.score - BACKLOGGED_PENALTY);
+        } else if(established) {
+            h.score = Math.min(1.0, h.score + ESTABLISHED_BONUS);
+        }
+        if(h.state==State.CLOSED && h.score < OPEN_BELOW_SCORE) {
+            open(fingerprint, h, now, "score "+String.format("%.2f", h.score));
+        }
+    }
+
+    public synchronized void recordSuccess(String fingerprint) {
+        Health h = health(fingerprint);
+        h.score = (1 - ALPHA) * h.score + ALPHA;
+        h.consecutiveFailures = 0;
+        if(h.state!=State.CLOSED) {
+            LOG.info("Peer "+abbrev(fingerprint)+" recovered; closing circuit.");
+            h.state = State.CLOSED;
+            h.openMs = INITIAL_OPEN_MS;
+            h.probing = false;
+        }
+    }
+
+    public synchronized void recordFailure(String fingerprint, long now) {
+        fail(fingerprint, 1.0, now);
+    }
+
+    /**
+     * Timeouts weigh more than immediate failures as they also held resources while waiting.
+     */
+    public synchronized void recordTimeout(String fingerprint, long now) {
+        fail(fingerprint, TIMEOUT_WEIGHT, now);
+    }
+
+    public synchronized double score(String fingerprint) {
+        Health h = peers.get(fingerprint);
+        return h==null ? 1.0 : h.score;
+    }
+
+    public synchronized State state(String fingerprint) {
+        Health h = peers.get(fingerprint);
+        return h==null ? State.CLOSED : h.state;
+    }
+
+    private void fail(String fingerprint, double weight, long now) {
+        Health h = health(fingerprint);
+        double alpha = Math.min(1.0, ALPHA * weight);
+        h.score = (1 - alpha) * h.score;
+        h.consecutiveFailures++;
+        if(h.state==State.HALF_OPEN) {
+            h.openMs = Math.min(MAX_OPEN_MS, h.openMs * 2);
+            open(fingerprint, h, now, "probe failed");
+        } else if(h.state==State.CLOSED
+                && (h.consecutiveFailures >= OPEN_AFTER_FAILURES || h.score < OPEN_BELOW_SCORE)) {
+            open(fingerprint, h, now, h.consecutiveFailures+" consecutive failures");
+        }
+    }
+
+    private void open(String fingerprint, Health h, long now, String reason) {
+        h.state = State.OPEN;
+        h.openedAt = now;
+        h.probing = false;
+        LOG.warning("Opening circuit to peer "+abbrev(fingerprint)+" for "+(h.openMs/1000)+"s: "+reason);
+    }
+
+    private Health health(String fingerprint) {
+        Health h = peers.get(fingerprint);
+        if(h==null) {
+            h = new Health();
+            peers.put(fingerprint, h);
+        }
+        return h;
+    }
+
+    static String abbrev(String fingerprint) {
+        return fingerprint.length() > 7 ? fingerprint.substring(0,7)+"..." : fingerprint;
+    }
+}
@@ -0,0 +1,601 @@
+package ra.i2p.android;
+
+import ra.common.network.NetworkPeer;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.logging.Logger;
+
+/**
+ * Compact, indexed table of known I2P peers.
+ *
+ * Peers live in slots of parallel primitive arrays so the cost per peer stays flat as the table grows.
+ * A 64-bit hash of the peer's fingerprint is the primary key (open addressing, long keys, int slots).
+ * Secondary indexes are kept by country, by reachability and by last-seen time (parallel arrays
+ * of (time, slot) kept sorted with free room at both ends, so updates to the newest or oldest
+ * entries are O(1) and others move only the shorter side), and a Fenwick tree over slot weights
+ * provides weighted sampling in O(log n).
+ *
+ * Thread safe: all public methods are synchronized on the table.
+ */
+final class I2PPeerTable {
+
+    private static final Logger LOG = Logger.getLogger(I2PPeerTable.class.getName());
+
+    public static final byte REACHABILITY_UNKNOWN = 0;
+    public static final byte REACHABILITY_REACHABLE = 1;
+    public static final byte REACHABILITY_BACKLOGGED = 2;
+    public static final byte REACHABILITY_UNREACHABLE = 3;
+    private static final int REACHABILITY_STATES = 4;
+
+    public static final String COUNTRY_UNKNOWN = "Unknown";
+
+    private static final int NIL = -1;
+    private static final long EMPTY_KEY = 0L;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxPeers;
+    private final ToLongFunction<String> hasher;
+
+    // Slot storage
+    private long[] keys;
+    private NetworkPeer[] peers;
+    private short[] countries;
+    private byte[] reachability;
+    private long[] lastSeen;
+    private float[] weights;
+    private int[] countryPos;
+    private int[] reachabilityPos;
+    private int[] livePos;
+    // Last-seen index: seenTimes/seenSlots sorted by time in [seenStart, seenEnd)
+    private long[] seenTimes;
+    private int[] seenSlots;
+    private int seenStart;
+    private int seenEnd;
+
+    private int slotsUsed = 0;
+    private int[] freeSlots = new int[16];
+    private int freeCount = 0;
+
+    // Primary index: fingerprint hash -> slot
+    private long[] indexKeys;
+    private int[] indexSlots;
+    private int indexMask;
+
+    // Secondary indexes
+    private final Map<String,Short> countryCodes = new HashMap<>();
+    private final List<String> countryNames = new ArrayList<>();
+    private final List<IntBag> byCountry = new ArrayList<>();
+    private final IntBag[] byReachability = new IntBag[REACHABILITY_STATES];
+    private final IntBag live = new IntBag();
+
+    // Fenwick tree over weights for weighted sampling
+    private double[] weightTree;
+    private double totalWeight = 0.0;
+
+    I2PPeerTable(int maxPeers) {
+        this(maxPeers, I2PPeerTable::hash);
+    }
+
+    /**
+     * @param hasher 64-bit hash of a fingerprint used as the primary key; collisions are resolved by fingerprint
+     */
+    I2PPeerTable(int maxPeers, ToLongFunction<String> hasher) {
+        this.maxPeers = maxPeers;
+        this.hasher = hasher;
+        int capacity = Math.max(16, Math.min(INITIAL_CAPACITY, maxPeers));
+        allocateSlots(capacity);
+        allocateIndex(tableSizeFor(capacity * 2));
+        allocateSeen(capacity * 2, 0);
+        for(int i=0; i<REACHABILITY_STATES; i++) {
+            byReachability[i] = new IntBag();
+        }
+    }
+
+    public int getMaxPeers() {
+        return maxPeers;
+    }
+
+    public synchronized int size() {
+        return live.size;
+    }
+
+    public synchronized boolean isFull() {
+        return live.size >= maxPeers;
+    }
+
+    public synchronized boolean contains(String fingerprint) {
+        return find(key(fingerprint), fingerprint) != NIL;
+    }
+
+    public synchronized NetworkPeer get(String fingerprint) {
+        int slot = find(key(fingerprint), fingerprint);
+        return slot==NIL ? null : peers[slot];
+    }
+
+    /**
+     * Adds the peer or updates an existing entry with the same fingerprint.
+     * @return false if the peer has no fingerprint or the table is full
+     */
+    public synchronized boolean put(NetworkPeer peer, String country, byte reach, long seenAt, float weight) {
+        String fingerprint = fingerprint(peer);
+        if(fingerprint==null) {
+            LOG.warning("Network Peer with fingerprint is required to add it to the peer table.");
+            return false;
+        }
+        long key = key(fingerprint);
+        int slot = find(key, fingerprint);
+        if(slot==NIL) {
+            if(live.size >= maxPeers) {
+                return false;
+            }
+            slot = allocateSlot();
+            keys[slot] = key;
+            peers[slot] = peer;
+            indexInsert(key, slot);
+            live.add(slot, livePos);
+            countries[slot] = countryCode(country);
+            byCountry.get(countries[slot]).add(slot, countryPos);
+            reachability[slot] = reach;
+            byReachability[reach].add(slot, reachabilityPos);
+            lastSeen[slot] = seenAt;
+            linkByRecency(slot);
+            setWeight(slot, weight);
+        } else {
+            peers[slot] = peer;
+            updateCountry(slot, country);
+            updateReachability(slot, reach);
+            if(seenAt > lastSeen[slot]) {
+                unlink(slot);
+                lastSeen[slot] = seenAt;
+                linkByRecency(slot);
+            }
+            setWeight(slot, weight);
+        }
+        return true;
+    }
+
+    public synchronized boolean markSeen(String fingerprint, long seenAt) {
+        int slot = find(key(fingerprint), fingerprint);
+        if(slot==NIL) return false;
+        if(seenAt > lastSeen[slot]) {
+            unlink(slot);
+            lastSeen[slot] = seenAt;
+            linkByRecency(slot);
+        }
+        return true;
+    }
+
+    public synchronized boolean updateReachability(String fingerprint, byte reach) {
+        int slot = find(key(fingerprint), fingerprint);
+        if(slot==NIL) return false;
+        updateReachability(slot, reach);
+        return true;
+    }
+
+    public synchronized boolean updateWeight(String fingerprint, float weight) {
+        int slot = find(key(fingerprint), fingerprint);
+        if(slot==NIL) return false;
+        setWeight(slot, weight);
+        return true;
+    }
+
+    public synchronized boolean remove(String fingerprint) {
+        long key = key(fingerprint);
+        int slot = find(key, fingerprint);
+        if(slot==NIL) return false;
+        indexRemove(key, slot);
+        live.remove(slot, livePos);
+        byCountry.get(countries[slot]).remove(slot, countryPos);
+        byReachability[reachability[slot]].remove(slot, reachabilityPos);
+        unlink(slot);
+        setWeight(slot, 0.0f);
+        keys[slot] = EMPTY_KEY;
+        peers[slot] = null;
+        releaseSlot(slot);
+        return true;
+    }
+
+    public synchronized int countByCountry(String country) {
+        Short code = countryCodes.get(normalizeCountry(country));
+        return code==null ? 0 : byCountry.get(code).size;
+    }
+
+    public synchronized int countByReachability(byte reach) {
+        return byReachability[reach].size;
+    }
+
+    /**
+     * Number of peers seen at or after the provided time.
+     */
+    public synchronized int countSeenSince(long since) {
+        return seenEnd - lowerBound(since);
+    }
+
+    /**
+     * Peers seen at or after the provided time, newest first.
+     */
+    public synchronized List<NetworkPeer> seenSince(long since, int limit) {
+        List<NetworkPeer> result = new ArrayList<>();
+        for(int i = seenEnd - 1; i >= seenStart && seenTimes[i] >= since && result.size() < limit; i--) {
+            result.add(peers[seenSlots[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Removes peers not seen since the provided time, oldest first.
+     * @return number of peers removed
+     */
+    public synchronized int evictSeenBefore(long before) {
+        int removed = 0;
+        while(seenStart < seenEnd && seenTimes[seenStart] < before) {
+            remove(peers[seenSlots[seenStart]].getDid().getPublicKey().getFingerprint());
+            removed++;
+        }
+        return removed;
+    }
+
+    public synchronized NetworkPeer randomPeer(Random random) {
+        if(live.size==0) return null;
+        return peers[live.items[random.nextInt(live.size)]];
+    }
+
+    public synchronized NetworkPeer randomPeer(Random random, byte reach) {
+        IntBag bag = byReachability[reach];
+        if(bag.size==0) return null;
+        return peers[bag.items[random.nextInt(bag.size)]];
+    }
+
+    public synchronized NetworkPeer randomPeerInCountry(Random random, String country) {
+        Short code = countryCodes.get(normalizeCountry(country));
+        if(code==null) return null;
+        IntBag bag = byCountry.get(code);
+        if(bag.size==0) return null;
+        return peers[bag.items[random.nextInt(bag.size)]];
+    }
+
+    /**
+     * Samples a peer with probability proportional to its weight.
+     * Falls back to uniform sampling when no peer carries weight.
+     */
+    public synchronized NetworkPeer weightedRandomPeer(Random random) {
+        if(live.size==0) return null;
+        if(totalWeight <= 0.0) return randomPeer(random);
+        NetworkPeer peer = peers[findByPrefix(random.nextDouble() * totalWeight)];
+        return peer==null ? randomPeer(random) : peer;
+    }
+
+    /**
+     * Samples up to count distinct peers uniformly in O(count) (Floyd's algorithm over the live slots).
+     */
+    public synchronized List<NetworkPeer> randomPeers(Random random, int count) {
+        int n = live.size;
+        int k = Math.min(count, n);
+        Set<Integer> chosen = new LinkedHashSet<>(k * 2);
+        for(int j = n - k; j < n; j++) {
+            int t = random.nextInt(j + 1);
+            if(!chosen.add(t)) {
+                chosen.add(j);
+            }
+        }
+        List<NetworkPeer> result = new ArrayList<>(k);
+        for(int i : chosen) {
+            result.add(peers[live.items[i]]);
+        }
+        return result;
+    }
+
+    public synchronized List<NetworkPeer> peers() {
+        List<NetworkPeer> result = new ArrayList<>(live.size);
+        for(int i=0; i<live.size; i++) {
+            result.add(peers[live.items[i]]);
+        }
+        return result;
+    }
+
+    // ---- Slots ----
+
+    private void allocateSlots(int capacity) {
+        keys = new long[capacity];
+        peers = new NetworkPeer[capacity];
+        countries = new short[capacity];
+        reachability = new byte[capacity];
+        lastSeen = new long[capacity];
+        weights = new float[capacity];
+        countryPos = new int[capacity];
+        reachabilityPos = new int[capacity];
+        livePos = new int[capacity];
+        weightTree = new double[capacity + 1];
+    }
+
+    private void growSlots() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        peers = Arrays.copyOf(peers, capacity);
+        countries = Arrays.copyOf(countries, capacity);
+        reachability = Arrays.copyOf(reachability, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        countryPos = Arrays.copyOf(countryPos, capacity);
+        reachabilityPos = Arrays.copyOf(reachabilityPos, capacity);
+        livePos = Arrays.copyOf(livePos, capacity);
+        // Rebuild Fenwick tree for the new size
+        weightTree = new double[capacity + 1];
+        totalWeight = 0.0;
+        for(int i=0; i<slotsUsed; i++) {
+            if(weights[i] > 0.0f) treeAdd(i, weights[i]);
+        }
+    }
+
+    private int allocateSlot() {
+        if(freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if(slotsUsed == keys.length) {
+            growSlots();
+        }
+        return slotsUsed++;
+    }
+
+    private void releaseSlot(int slot) {
+        if(freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    // ---- Primary index (open addressing, linear probing, backward-shift deletion) ----
+
+    private void allocateIndex(int size) {
+        indexKeys = new long[size];
+        indexSlots = new int[size];
+        indexMask = size - 1;
+    }
+
+    private int find(long key, String fingerprint) {
+        int i = mix(key) & indexMask;
+        while(indexKeys[i] != EMPTY_KEY) {
+            // Same key with another fingerprint is a 64-bit hash collision: keep probing
+            if(indexKeys[i] == key && fingerprint.equals(fingerprint(peers[indexSlots[i]]))) {
+                return indexSlots[i];
+            }
+            i = (i + 1) & indexMask;
+        }
+        return NIL;
+    }
+
+    private void indexInsert(long key, int slot) {
+        if((live.size + 1) * 2 > indexKeys.length) {
+            long[] oldKeys = indexKeys;
+            int[] oldSlots = indexSlots;
+            allocateIndex(indexKeys.length * 2);
+            for(int j=0; j<oldKeys.length; j++) {
+                if(oldKeys[j] != EMPTY_KEY) indexPut(oldKeys[j], oldSlots[j]);
+            }
+        }
+        indexPut(key, slot);
+    }
+
+    private void indexPut(long key, int slot) {
+        int i = mix(key) & indexMask;
+        while(indexKeys[i] != EMPTY_KEY) {
+            i = (i + 1) & indexMask;
+        }
+        indexKeys[i] = key;
+        indexSlots[i] = slot;
+    }
+
+    private void indexRemove(long key, int slot) {
+        int i = mix(key) & indexMask;
+        while(indexKeys[i] != key || indexSlots[i] != slot) {
+            i = (i + 1) & indexMask;
+        }
+        // Shift following entries of the cluster back so probing never hits a hole
+        int j = i;
+        while(true) {
+            j = (j + 1) & indexMask;
+            if(indexKeys[j] == EMPTY_KEY) break;
+            int home = mix(indexKeys[j]) & indexMask;
+            boolean between = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if(!between) {
+                indexKeys[i] = indexKeys[j];
+                indexSlots[i] = indexSlots[j];
+                i = j;
+            }
+        }
+        indexKeys[i] = EMPTY_KEY;
+    }
+
+    // ---- Secondary indexes ----
+
+    private short countryCode(String country) {
+        String name = normalizeCountry(country);
+        Short code = countryCodes.get(name);
+        if(code==null) {
+            code = (short)countryNames.size();
+            countryCodes.put(name, code);
+            countryNames.add(name);
+            byCountry.add(new IntBag());
+        }
+        return code;
+    }
+
+    private void updateCountry(int slot, String country) {
+        short code = countryCode(country);
+        if(code != countries[slot]) {
+            byCountry.get(countries[slot]).remove(slot, countryPos);
+            countries[slot] = code;
+            byCountry.get(code).add(slot, countryPos);
+        }
+    }
+
+    private void updateReachability(int slot, byte reach) {
+        if(reach != reachability[slot]) {
+            byReachability[reachability[slot]].remove(slot, reachabilityPos);
+            reachability[slot] = reach;
+            byReachability[reach].add(slot, reachabilityPos);
+        }
+    }
+
+    private void allocateSeen(int capacity, int size) {
+        long[] times = new long[capacity];
+        int[] slots = new int[capacity];
+        int start = (capacity - size) / 2;
+        if(seenTimes!=null) {
+            System.arraycopy(seenTimes, seenStart, times, start, size);
+            System.arraycopy(seenSlots, seenStart, slots, start, size);
+        }
+        seenTimes = times;
+        seenSlots = slots;
+        seenStart = start;
+        seenEnd = start + size;
+    }
+
+    /**
+     * First index in the last-seen index with a time at or after the provided time.
+     */
+    private int lowerBound(long time) {
+        int lo = seenStart;
+        int hi = seenEnd;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(seenTimes[mid] < time) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Adds the slot to the last-seen index, moving whichever side of the insertion point is shorter.
+     */
+    private void linkByRecency(int slot) {
+        long time = lastSeen[slot];
+        int size = seenEnd - seenStart;
+        if(seenStart == 0 || seenEnd == seenTimes.length) {
+            // Out of room on one side: re-center, growing when more than half full
+            allocateSeen(size * 2 + 2 > seenTimes.length ? seenTimes.length * 2 : seenTimes.length, size);
+        }
+        // Insert after entries with the same time so the common append case stays at the end
+        int lo = lowerBound(time);
+        while(lo < seenEnd && seenTimes[lo] == time) lo++;
+        if(lo - seenStart < seenEnd - lo) {
+            System.arraycopy(seenTimes, seenStart, seenTimes, seenStart - 1, lo - seenStart);
+            System.arraycopy(seenSlots, seenStart, seenSlots, seenStart - 1, lo - seenStart);
+            seenStart--;
+            lo--;
+        } else {
+            System.arraycopy(seenTimes, lo, seenTimes, lo + 1, seenEnd - lo);
+            System.arraycopy(seenSlots, lo, seenSlots, lo + 1, seenEnd - lo);
+            seenEnd++;
+        }
+        seenTimes[lo] = time;
+        seenSlots[lo] = slot;
+    }
+
+    private void unlink(int slot) {
+        int i = lowerBound(lastSeen[slot]);
+        while(seenSlots[i] != slot) i++;
+        if(i - seenStart < seenEnd - i - 1) {
+            System.arraycopy(seenTimes, seenStart, seenTimes, seenStart + 1, i - seenStart);
+            System.arraycopy(seenSlots, seenStart, seenSlots, seenStart + 1, i - seenStart);
+            seenStart++;
+        } else {
+            System.arraycopy(seenTimes, i + 1, seenTimes, i, seenEnd - i - 1);
+            System.arraycopy(seenSlots, i + 1, seenSlots, i, seenEnd - i - 1);
+            seenEnd--;
+        }
+    }
+
+    // ---- Weighted sampling (Fenwick tree) ----
+
+    private void setWeight(int slot, float weight) {
+        float w = weight > 0.0f ? weight : 0.0f;
+        double delta = w - weights[slot];
+        if(delta != 0.0) {
+            weights[slot] = w;
+            treeAdd(slot, delta);
+        }
+    }
+
+    private void treeAdd(int slot, double delta) {
+        totalWeight += delta;
+        for(int i = slot + 1; i < weightTree.length; i += i & -i) {
+            weightTree[i] += delta;
+        }
+    }
+
+    private int findByPrefix(double target) {
+        int pos = 0;
+        int step = Integer.highestOneBit(weightTree.length - 1);
+        for(; step > 0; step >>= 1) {
+            int next = pos + step;
+            if(next < weightTree.length && weightTree[next] <= target) {
+                pos = next;
+                target -= weightTree[next];
+            }
+        }
+        // pos is the count of slots whose cumulative weight is <= target; clamp for rounding drift
+        int slot = Math.min(pos, slotsUsed - 1);
+        while(slot > 0 && (weights[slot] <= 0.0f || peers[slot]==null)) slot--;
+        return slot;
+    }
+
+    // ---- Helpers ----
+
+    private static String fingerprint(NetworkPeer peer) {
+        if(peer==null || peer.getDid()==null || peer.getDid().getPublicKey()==null) return null;
+        return peer.getDid().getPublicKey().getFingerprint();
+    }
+
+    private static String normalizeCountry(String country) {
+        return country==null || country.isEmpty() ? COUNTRY_UNKNOWN : country;
+    }
+
+    private long key(String fingerprint) {
+        long key = hasher.applyAsLong(fingerprint);
+        return key==EMPTY_KEY ? 1L : key;
+    }
+
+    /**
+     * 64-bit FNV-1a of the fingerprint; zero is reserved as the empty marker.
+     */
+    static long hash(String fingerprint) {
+        long h = 0xcbf29ce484222325L;
+        for(int i=0; i<fingerprint.length(); i++) {
+            h ^= fingerprint.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h==EMPTY_KEY ? 1L : h;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = Integer.highestOneBit(Math.max(2, n) - 1) << 1;
+        return Math.max(16, size);
+    }
+
+    /**
+     * Dense set of slot numbers with O(1) add and swap-remove; positions are kept in a caller owned array.
+     */
+    private static final class IntBag {
+        int[] items = new int[16];
+        int size = 0;
+
+        void add(int slot, int[] pos) {
+            if(size == items.length) items = Arrays.copyOf(items, size * 2);
+            pos[slot] = size;
+            items[size++] = slot;
+        }
+
+        void remove(int slot, int[] pos) {
+            int p = pos[slot];
+            int last = items[--size];
+            items[p] = last;
+            pos[last] = p;
+        }
+    }
+}
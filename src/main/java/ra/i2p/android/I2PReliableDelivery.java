@@ -0,0 +1,622 @@
+package ra.i2p.android;
+
+import ra.common.Envelope;
+import ra.common.network.NetworkPeer;
+import ra.common.route.ExternalRoute;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Optional reliable delivery over I2P datagrams giving at-least-once delivery.
+ *
+ * Each destination gets a channel with its own sequence numbers and a send window limiting
+ * messages in flight; messages beyond the window wait in the channel's backlog. Receivers
+ * reply with a cumulative acknowledgement plus selective acknowledgements (ranges) of
+ * out-of-order sequences, coalesced per tick. A message is retransmitted early once enough
+ * newer messages were acknowledged past it, otherwise after a retransmission timeout derived
+ * from measured round trip times (RFC 6298, Karn's rule). Messages are dead lettered once
+ * retries are exhausted.
+ *
+ * Every data message also carries the sender's lowest unacknowledged sequence (forward marker)
+ * so a receiver skips sequences the sender gave up on, or never saw because the receiver
+ * restarted, instead of waiting for them forever. Channels and receivers idle for a while are
+ * evicted; a new channel starts a new epoch so its receiver starts over.
+ *
+ * Not every destination runs reliable delivery. Until a destination has acknowledged anything
+ * or sent reliable data itself, its channel sends one message at a time with few retries. If
+ * that probe goes unacknowledged the destination is sent to best-effort for a while instead of
+ * being dead lettered and failed.
+ */
+final class I2PReliableDelivery {
+
+    private static final Logger LOG = Logger.getLogger(I2PReliableDelivery.class.getName());
+
+    public static final String SEQ = "rel.seq";
+    public static final String EPOCH = "rel.epoch";
+    public static final String ACK = "rel.ack";
+    public static final String SACK = "rel.sack";
+    public static final String FWD = "rel.fwd";
+
+    public static final int DEFAULT_WINDOW = 32;
+    public static final int DEFAULT_MAX_RETRIES = 8;
+    // Sends of the first message to a destination not yet known to acknowledge
+    private static final int PROBE_RETRIES = 2;
+    // How long a destination that never acknowledged is sent to best-effort before probing again
+    private static final long FALLBACK_MS = 10 * 60 * 1000L;
+    private static final int MAX_BACKLOG = 10000;
+    private static final int MAX_SACK_RANGES = 32;
+    // Newer messages acknowledged past a missing one before it is retransmitted without waiting for the RTO
+    private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+    private static final int MAX_OUT_OF_ORDER = 1024;
+    private static final long TICK_MS = 50L;
+    // Acks are repeated while the receiver has holes in case the last one was lost, a few times at most
+    private static final long ACK_REPEAT_MS = 500L;
+    private static final int MAX_ACK_REPEATS = 8;
+    // Longer than a message can be retried with the maximum RTO so evicted state is not missed
+    private static final long IDLE_EVICT_MS = 30 * 60 * 1000L;
+    private static final long INITIAL_RTO_MS = 3000L;
+    private static final long MIN_RTO_MS = 1000L;
+    private static final long MAX_RTO_MS = 60 * 1000L;
+
+    /**
+     * What reliable delivery needs from the service.
+     */
+    interface Transport {
+        NetworkPeer localPeer();
+
+        Boolean transmit(Envelope envelope);
+
+        /**
+         * Acknowledged by the destination, or handed to the session best-effort because the
+         * destination does not acknowledge.
+         */
+        void delivered(Envelope envelope);
+
+        /**
+         * Not acknowledged by a destination known to acknowledge.
+         */
+        void deliveryFailed(Envelope envelope);
+
+        void peerSucceeded(String fingerprint);
+
+        /**
+         * Acknowledgements freed send window space.
+         */
+        void windowOpened();
+    }
+
+    private final Transport transport;
+    private final int window;
+    private final int maxRetries;
+    private final SecureRandom random = new SecureRandom();
+
+    private final Map<String,Channel> channels = new ConcurrentHashMap<>();
+    private final Map<String,Receiver> receivers = new ConcurrentHashMap<>();
+    // Destinations that never acknowledged, until when they are sent to best-effort
+    private final Map<String,Long> fallback = new ConcurrentHashMap<>();
+    private ScheduledExecutorService timer;
+    // Set when acknowledgements free window space so the outbound journal is drained again
+    private volatile boolean windowOpened = false;
+
+    I2PReliableDelivery(Transport transport, int window, int maxRetries) {
+        this.transport = transport;
+        this.window = Math.max(1, window);
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "I2PReliableDelivery");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> tick(System.currentTimeMillis()), TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        if(timer!=null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * Queues the Envelope for reliable delivery to its destination.
+     * @return false if it has no I2P destination or the destination's backlog is full
+     */
+    public Boolean send(Envelope envelope) {
+        String to = destination(envelope);
+        if(to==null) {
+            // Let the session report what is wrong with the route
+            return transport.transmit(envelope);
+        }
+        if(fallingBack(to, System.currentTimeMillis())) {
+            return sendBestEffort(envelope);
+        }
+        while(true) {
+            Channel channel = channels.computeIfAbsent(to, k -> new Channel(random.nextLong()));
+            synchronized (channel) {
+                if(channel.evicted) {
+                    continue;
+                }
+                if(channel.backlog.size() >= MAX_BACKLOG) {
+                    LOG.warning("Reliable delivery backlog full for "+I2PPeerHealth.abbrev(to));
+                    envelope.getMessage().addErrorMessage("Send backlog full.");
+                    return false;
+                }
+                channel.lastActivity = System.currentTimeMillis();
+                channel.backlog.add(envelope);
+                pump(channel);
+            }
+            return true;
+        }
+    }
+
+    private boolean fallingBack(String to, long now) {
+        Long until = fallback.get(to);
+        if(until==null) {
+            return false;
+        }
+        if(now < until) {
+            return true;
+        }
+        // Probe again in case the destination has started acknowledging
+        fallback.remove(to, until);
+        return false;
+    }
+
+    private Boolean sendBestEffort(Envelope envelope) {
+        Boolean sent = transport.transmit(envelope);
+        if(sent) {
+            transport.delivered(envelope);
+        }
+        return sent;
+    }
+
+    /**
+     * Whether the Envelope's destination has room in its send window, i.e. it would be sent
+     * now rather than held in memory behind earlier messages.
+     */
+    public boolean hasRoom(Envelope envelope) {
+        String to = destination(envelope);
+        Channel channel = to==null ? null : channels.get(to);
+        if(channel==null || fallingBack(to, System.currentTimeMillis())) {
+            return true;
+        }
+        synchronized (channel) {
+            return channel.inFlight.size() + channel.backlog.size() < window(channel);
+        }
+    }
+
+    /**
+     * Until the destination is known to acknowledge only a single probe is in flight.
+     */
+    private int window(Channel channel) {
+        return channel.confirmed ? window : 1;
+    }
+
+    /**
+     * Processes the reliability values of a received Envelope, acknowledging data and
+     * releasing acknowledged messages.
+     * @return true if the Envelope should be delivered; false for acknowledgements and duplicates
+     */
+    public boolean receive(Envelope envelope) {
+        Object ack = envelope.getValue(ACK);
+        if(ack!=null) {
+            handleAck(envelope, Long.parseLong(String.valueOf(ack)));
+        }
+        Object seqObj = envelope.getValue(SEQ);
+        if(seqObj==null) {
+            return ack==null;
+        }
+        NetworkPeer from = origination(envelope);
+        String fromFingerprint = fingerprint(from);
+        if(fromFingerprint==null) {
+            // Unable to acknowledge; deliver as is
+            return true;
+        }
+        confirmed(fromFingerprint);
+        long seq = Long.parseLong(String.valueOf(seqObj));
+        long senderEpoch = envelope.getValue(EPOCH)==null ? 0L : Long.parseLong(String.valueOf(envelope.getValue(EPOCH)));
+        long forward = envelope.getValue(FWD)==null ? 0L : Long.parseLong(String.valueOf(envelope.getValue(FWD)));
+        while(true) {
+            Receiver receiver = receivers.computeIfAbsent(fromFingerprint, k -> new Receiver());
+            synchronized (receiver) {
+                if(receiver.evicted) {
+                    continue;
+                }
+                if(receiver.epoch != senderEpoch) {
+                    // Sender restarted its channel (or this receiver is new); start over
+                    receiver.epoch = senderEpoch;
+                    receiver.cumulative = -1;
+                    receiver.outOfOrder.clear();
+                }
+                receiver.peer = from;
+                receiver.lastActivity = System.currentTimeMillis();
+                if(forward - 1 > receiver.cumulative) {
+                    // Sender no longer waits on anything below forward: skip the holes
+                    receiver.cumulative = forward - 1;
+                    receiver.outOfOrder.headSet(forward).clear();
+                    advance(receiver);
+                }
+                if(seq <= receiver.cumulative || receiver.outOfOrder.contains(seq)) {
+                    // Duplicate from a retransmission; the earlier ack was likely lost
+                    receiver.ackDue = true;
+                    return false;
+                }
+                if(seq == receiver.cumulative + 1) {
+                    receiver.cumulative = seq;
+                    advance(receiver);
+                } else {
+                    if(receiver.outOfOrder.size() >= MAX_OUT_OF_ORDER) {
+                        // Drop without acking; sender will retransmit
+                        return false;
+                    }
+                    receiver.outOfOrder.add(seq);
+                }
+                receiver.ackDue = true;
+                receiver.repeats = 0;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records that the peer runs reliable delivery, opening its full send window.
+     */
+    private void confirmed(String fingerprint) {
+        fallback.remove(fingerprint);
+        Channel channel = channels.get(fingerprint);
+        if(channel==null) {
+            return;
+        }
+        synchronized (channel) {
+            if(!channel.confirmed) {
+                channel.confirmed = true;
+                pump(channel);
+            }
+        }
+    }
+
+    private static void advance(Receiver receiver) {
+        while(!receiver.outOfOrder.isEmpty() && receiver.outOfOrder.first() == receiver.cumulative + 1) {
+            receiver.cumulative = receiver.outOfOrder.pollFirst();
+        }
+    }
+
+    public int inFlight() {
+        int count = 0;
+        for(Channel channel : channels.values()) {
+            synchronized (channel) {
+                count += channel.inFlight.size();
+            }
+        }
+        return count;
+    }
+
+    private void pump(Channel channel) {
+        while(channel.inFlight.size() < window(channel) && !channel.backlog.isEmpty()) {
+            Envelope envelope = channel.backlog.poll();
+            long seq = channel.nextSeq++;
+            envelope.addNVP(SEQ, String.valueOf(seq));
+            envelope.addNVP(EPOCH, String.valueOf(channel.epoch));
+            Outstanding o = new Outstanding(envelope);
+            channel.inFlight.put(seq, o);
+            o.sentAt = System.currentTimeMillis();
+            if(!transmit(channel, o)) {
+                LOG.fine("Send of seq "+seq+" failed; will retransmit.");
+            }
+        }
+    }
+
+    /**
+     * Sends a message in flight stamped with the channel's current forward marker.
+     */
+    private boolean transmit(Channel channel, Outstanding o) {
+        o.envelope.addNVP(FWD, String.valueOf(channel.inFlight.firstKey()));
+        return transport.transmit(o.envelope);
+    }
+
+    private void handleAck(Envelope envelope, long cumulative) {
+        String from = fingerprint(origination(envelope));
+        if(from==null) return;
+        confirmed(from);
+        Channel channel = channels.get(from);
+        if(channel==null) return;
+        List<long[]> ranges = parseRanges(envelope.getValue(SACK));
+        long now = System.currentTimeMillis();
+        List<Envelope> acked = new ArrayList<>();
+        synchronized (channel) {
+            long highestAcked = cumulative;
+            Iterator<Map.Entry<Long,Outstanding>> i = channel.inFlight.entrySet().iterator();
+            while(i.hasNext()) {
+                Map.Entry<Long,Outstanding> e = i.next();
+                if(e.getKey() > cumulative && !inRanges(ranges, e.getKey())) {
+                    continue;
+                }
+                if(e.getValue().retries==0) {
+                    // Karn: only sample round trips of messages sent once
+                    channel.sampleRtt(now - e.getValue().sentAt);
+                }
+                highestAcked = Math.max(highestAcked, e.getKey());
+                i.remove();
+                acked.add(e.getValue().envelope);
+            }
+            for(long[] r : ranges) {
+                highestAcked = Math.max(highestAcked, r[1]);
+            }
+            // Fast retransmit holes the receiver has clearly skipped
+            for(Map.Entry<Long,Outstanding> e : channel.inFlight.headMap(highestAcked).entrySet()) {
+                Outstanding o = e.getValue();
+                if(o.fastRetransmitted || highestAcked - e.getKey() < FAST_RETRANSMIT_THRESHOLD) {
+                    continue;
+                }
+                o.fastRetransmitted = true;
+                o.retries++;
+                o.sentAt = now;
+                transmit(channel, o);
+            }
+            channel.lastActivity = now;
+            pump(channel);
+        }
+        if(!acked.isEmpty()) {
+            windowOpened = true;
+            for(Envelope e : acked) {
+                transport.delivered(e);
+            }
+            transport.peerSucceeded(from);
+        }
+    }
+
+    /**
+     * Retransmits, gives up, flushes acknowledgements and evicts idle state as of now.
+     * Runs on the timer every TICK_MS.
+     */
+    void tick(long now) {
+        try {
+            for(Map.Entry<String,Channel> e : channels.entrySet()) {
+                retransmit(e.getKey(), e.getValue(), now);
+                evictIfIdle(e.getKey(), e.getValue(), now);
+            }
+            for(Map.Entry<String,Receiver> e : receivers.entrySet()) {
+                flushAck(e.getValue(), now);
+                evictIfIdle(e.getKey(), e.getValue(), now);
+            }
+            fallback.values().removeIf(until -> until <= now);
+            if(windowOpened) {
+                windowOpened = false;
+                transport.windowOpened();
+            }
+        } catch (Exception e) {
+            LOG.warning("Reliable delivery tick failed: "+e.getLocalizedMessage());
+        }
+    }
+
+    private void retransmit(String to, Channel channel, long now) {
+        List<Envelope> failed = null;
+        List<Envelope> probed = null;
+        List<Envelope> unsent = null;
+        boolean backedOff = false;
+        synchronized (channel) {
+            int retries = channel.confirmed ? maxRetries : Math.min(maxRetries, PROBE_RETRIES);
+            Iterator<Map.Entry<Long,Outstanding>> i = channel.inFlight.entrySet().iterator();
+            while(i.hasNext()) {
+                Outstanding o = i.next().getValue();
+                if(now - o.sentAt < channel.rto) {
+                    continue;
+                }
+                if(o.retries >= retries && !channel.confirmed) {
+                    // Nothing ever acknowledged: assume the destination does not run reliable delivery.
+                    // The probe was sent already; the backlog goes out best-effort.
+                    probed = new ArrayList<>();
+                    for(Outstanding p : channel.inFlight.values()) {
+                        probed.add(p.envelope);
+                    }
+                    unsent = new ArrayList<>(channel.backlog);
+                    channel.inFlight.clear();
+                    channel.backlog.clear();
+                    channel.evicted = true;
+                    channels.remove(to, channel);
+                    fallback.put(to, now + FALLBACK_MS);
+                    break;
+                }
+                if(o.retries >= retries) {
+                    i.remove();
+                    if(failed==null) failed = new ArrayList<>();
+                    failed.add(o.envelope);
+                    continue;
+                }
+                if(o.retries > 0 && !backedOff) {
+                    // Repeated loss: back off exponentially, once per tick however many timed out
+                    channel.rto = Math.min(MAX_RTO_MS, channel.rto * 2);
+                    backedOff = true;
+                }
+                o.retries++;
+                o.sentAt = now;
+                transmit(channel, o);
+            }
+            if(failed!=null && !channel.evicted) {
+                pump(channel);
+            }
+        }
+        if(failed!=null) {
+            for(Envelope envelope : failed) {
+                LOG.warning("Envelope "+I2PPeerHealth.abbrev(envelope.getId())+" not acknowledged after "+maxRetries+" retries.");
+                transport.deliveryFailed(envelope);
+            }
+        }
+        if(probed!=null) {
+            LOG.info("Destination "+I2PPeerHealth.abbrev(to)+" never acknowledged; sending best-effort.");
+            for(Envelope envelope : probed) {
+                transport.delivered(envelope);
+            }
+            for(Envelope envelope : unsent) {
+                if(!sendBestEffort(envelope)) {
+                    transport.deliveryFailed(envelope);
+                }
+            }
+        }
+    }
+
+    private void flushAck(Receiver receiver, long now) {
+        Envelope ack;
+        synchronized (receiver) {
+            boolean repeat = !receiver.outOfOrder.isEmpty() && receiver.repeats < MAX_ACK_REPEATS
+                    && now - receiver.ackedAt >= ACK_REPEAT_MS;
+            if(!(receiver.ackDue || repeat) || receiver.peer==null) {
+                return;
+            }
+            if(!receiver.ackDue) {
+                // Stop repeating once the sender has gone quiet; its next message carries the forward marker
+                receiver.repeats++;
+            }
+            receiver.ackDue = false;
+            receiver.ackedAt = now;
+            ack = Envelope.documentFactory();
+            ack.addExternalRoute(I2PAndroidService.class, I2PAndroidService.OPERATION_SEND, transport.localPeer(), receiver.peer);
+            ack.addNVP(ACK, String.valueOf(receiver.cumulative));
+            ack.addNVP(SACK, formatRanges(receiver.outOfOrder));
+        }
+        transport.transmit(ack);
+    }
+
+    private void evictIfIdle(String fingerprint, Channel channel, long now) {
+        synchronized (channel) {
+            if(channel.inFlight.isEmpty() && channel.backlog.isEmpty() && now - channel.lastActivity >= IDLE_EVICT_MS) {
+                channel.evicted = true;
+                channels.remove(fingerprint, channel);
+            }
+        }
+    }
+
+    private void evictIfIdle(String fingerprint, Receiver receiver, long now) {
+        synchronized (receiver) {
+            if(now - receiver.lastActivity >= IDLE_EVICT_MS) {
+                receiver.evicted = true;
+                receivers.remove(fingerprint, receiver);
+            }
+        }
+    }
+
+    /**
+     * Encodes sequences as ranges, e.g. "5-9,12,14-15", keeping the newest ranges when over the limit.
+     */
+    static String formatRanges(SortedSet<Long> seqs) {
+        Deque<String> ranges = new ArrayDeque<>();
+        long start = -1;
+        long end = -1;
+        for(Long seq : seqs) {
+            if(start >= 0 && seq == end + 1) {
+                end = seq;
+                continue;
+            }
+            if(start >= 0) ranges.add(start==end ? String.valueOf(start) : start+"-"+end);
+            start = end = seq;
+        }
+        if(start >= 0) ranges.add(start==end ? String.valueOf(start) : start+"-"+end);
+        while(ranges.size() > MAX_SACK_RANGES) {
+            ranges.poll();
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String r : ranges) {
+            if(sb.length() > 0) sb.append(',');
+            sb.append(r);
+        }
+        return sb.toString();
+    }
+
+    static List<long[]> parseRanges(Object sack) {
+        List<long[]> ranges = new ArrayList<>();
+        if(sack==null || String.valueOf(sack).isEmpty()) {
+            return ranges;
+        }
+        for(String r : String.valueOf(sack).split(",")) {
+            int dash = r.indexOf('-');
+            if(dash < 0) {
+                long seq = Long.parseLong(r);
+                ranges.add(new long[]{seq, seq});
+            } else {
+                ranges.add(new long[]{Long.parseLong(r.substring(0, dash)), Long.parseLong(r.substring(dash + 1))});
+            }
+        }
+        return ranges;
+    }
+
+    private static boolean inRanges(List<long[]> ranges, long seq) {
+        for(long[] r : ranges) {
+            if(seq >= r[0] && seq <= r[1]) return true;
+        }
+        return false;
+    }
+
+    private static String destination(Envelope envelope) {
+        if(!(envelope.getRoute() instanceof ExternalRoute)) return null;
+        return fingerprint(((ExternalRoute)envelope.getRoute()).getDestination());
+    }
+
+    private static NetworkPeer origination(Envelope envelope) {
+        if(!(envelope.getRoute() instanceof ExternalRoute)) return null;
+        return ((ExternalRoute)envelope.getRoute()).getOrigination();
+    }
+
+    private static String fingerprint(NetworkPeer peer) {
+        if(peer==null || peer.getDid()==null || peer.getDid().getPublicKey()==null) return null;
+        return peer.getDid().getPublicKey().getFingerprint();
+    }
+
+    private static final class Outstanding {
+        final Envelope envelope;
+        long sentAt;
+        int retries = 0;
+        boolean fastRetransmitted = false;
+
+        Outstanding(Envelope envelope) {
+            this.envelope = envelope;
+        }
+    }
+
+    private static final class Channel {
+        // Lets receivers detect that the sequence numbers restarted
+        final long epoch;
+        long nextSeq = 0;
+        final Deque<Envelope> backlog = new ArrayDeque<>();
+        final SortedMap<Long,Outstanding> inFlight = new TreeMap<>();
+        double srtt = -1;
+        double rttvar = 0;
+        long rto = INITIAL_RTO_MS;
+        long lastActivity = System.currentTimeMillis();
+        boolean evicted = false;
+        // Destination has acknowledged or sent reliable data
+        boolean confirmed = false;
+
+        Channel(long epoch) {
+            this.epoch = epoch;
+        }
+
+        void sampleRtt(long rtt) {
+            if(srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2.0;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, (long)(srtt + Math.max(TICK_MS, 4 * rttvar))));
+        }
+    }
+
+    private static final class Receiver {
+        long epoch = 0;
+        long cumulative = -1;
+        final TreeSet<Long> outOfOrder = new TreeSet<>();
+        boolean ackDue = false;
+        long ackedAt = 0;
+        int repeats = 0;
+        long lastActivity = System.currentTimeMillis();
+        boolean evicted = false;
+        NetworkPeer peer;
+    }
+}
@@ -0,0 +1,90 @@
+package ra.i2p.android;
+
+import ra.common.Envelope;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Matches inbound replies to outstanding requests by correlation id.
+ *
+ * Each request holds a future and a scheduled timeout on a single shared timer thread,
+ * so no thread is parked per outstanding request. Completing, timing out or cancelling
+ * the future removes the request and its timeout.
+ */
+final class I2PRequestCorrelator {
+
+    private static final Logger LOG = Logger.getLogger(I2PRequestCorrelator.class.getName());
+
+    private final Map<String,CompletableFuture<Envelope>> pending = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+
+    I2PRequestCorrelator() {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "I2PRequestTimeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Registers a request awaiting a reply.
+     * @param id correlation id the reply will carry
+     * @param timeoutMs time to wait for the reply before failing with a TimeoutException
+     */
+    public CompletableFuture<Envelope> register(final String id, long timeoutMs) {
+        final CompletableFuture<Envelope> future = new CompletableFuture<>();
+        if(pending.putIfAbsent(id, future)!=null) {
+            future.completeExceptionally(new IllegalStateException("Request "+id+" already in flight."));
+            return future;
+        }
+        final ScheduledFuture<?> timeout = timer.schedule(() -> {
+            future.completeExceptionally(new TimeoutException("No reply to request "+id+" within "+timeoutMs+" ms."));
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((reply, ex) -> {
+            pending.remove(id, future);
+            timeout.cancel(false);
+        });
+        return future;
+    }
+
+    /**
+     * Completes the request the reply belongs to.
+     * @return false if the reply does not match an outstanding request
+     */
+    public boolean complete(String id, Envelope reply) {
+        if(id==null) {
+            return false;
+        }
+        CompletableFuture<Envelope> future = pending.get(id);
+        if(future==null) {
+            LOG.fine("No outstanding request for reply "+id);
+            return false;
+        }
+        return future.complete(reply);
+    }
+
+    public boolean fail(String id, Throwable cause) {
+        CompletableFuture<Envelope> future = pending.get(id);
+        return future!=null && future.completeExceptionally(cause);
+    }
+
+    public boolean contains(String id) {
+        return pending.containsKey(id);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Cancels all outstanding requests. The timer thread is a daemon and is kept for reuse.
+     */
+    public void cancelAll() {
+        for(CompletableFuture<Envelope> future : pending.values()) {
+            future.cancel(false);
+        }
+    }
+}
@@ -31,6 +31,7 @@ class I2PSession extends BaseClientSession {
     protected I2PAndroidService service;
     protected boolean connected = false;
     protected String address;
+    protected Properties options = new Properties();
 
     public I2PSession(I2PAndroidService service) {
         this.service = service;
@@ -47,6 +48,11 @@ class I2PSession extends BaseClientSession {
     public boolean init(Properties p) {
         super.init(p);
         LOG.info("Initializing I2P Session....");
+        for(String param : I2CP_PARAMETERS) {
+            if(p.getProperty(param)!=null) {
+                options.setProperty(param, p.getProperty(param));
+            }
+        }
 
         LOG.info("I2P Session initialized.");
         return true;
@@ -109,6 +115,50 @@ class I2PSession extends BaseClientSession {
 //        return socketManager!=null;
 //    }
 
+    static boolean isI2CPParameter(String key) {
+        return I2CP_PARAMETERS.contains(key);
+    }
+
+    /**
+     * Tunnel length, variance and quantity can be reconfigured on an open session.
+     */
+    static boolean isTunnelParameter(String key) {
+        return key.startsWith("inbound.") || key.startsWith("outbound.");
+    }
+
+    /**
+     * Updates the tunnel options held by the session without tearing it down.
+     * Only tunnel parameters are taken; others require the session to be recycled.
+     */
+    public boolean updateOptions(Map<String,String> changed) {
+        boolean updated = false;
+        for(Map.Entry<String,String> e : changed.entrySet()) {
+            if(isI2CPParameter(e.getKey()) && isTunnelParameter(e.getKey())) {
+                options.setProperty(e.getKey(), e.getValue());
+                updated = true;
+            }
+        }
+        if(updated) {
+            LOG.info("Updated I2P Session tunnel options: "+changed.keySet());
+        }
+        return updated;
+    }
+
+    /**
+     * @return true if the session is open and uses an I2CP option with a different value
+     */
+    public boolean affectedBy(Map<String,String> changed) {
+        if(!connected) {
+            return false;
+        }
+        for(Map.Entry<String,String> e : changed.entrySet()) {
+            if(isI2CPParameter(e.getKey()) && !e.getValue().equals(options.getProperty(e.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean disconnect() {
         connected = false;
@@ -149,7 +199,7 @@ class I2PSession extends BaseClientSession {
             return false;
         }
 
-        LOG.info("Sending Envelope id: "+envelope.getId().substring(0,7)+"... to: "+er.getDestination().getDid().getPublicKey().getFingerprint().substring(0,7)+"...");
+        LOG.info("Sending Envelope id: "+I2PPeerHealth.abbrev(envelope.getId())+" to: "+I2PPeerHealth.abbrev(er.getDestination().getDid().getPublicKey().getFingerprint()));
         String content = envelope.toJSON();
         LOG.fine("Content to send: \n\t" + content);
         if (content.length() > 31500) {
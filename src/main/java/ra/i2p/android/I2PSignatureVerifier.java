@@ -0,0 +1,259 @@
+package ra.i2p.android;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * Pool of worker threads verifying inbound signatures off the I/O threads.
+ *
+ * Requests are queued and each worker drains them in batches of up to BATCH_SIZE. Within a batch,
+ * requests are grouped by scheme and public key so each key is decoded once and a single
+ * Signature instance (kept per worker) is re-initialized per group. Signatures that verified
+ * are remembered by SHA-256 digest so re-delivered envelopes are not verified twice.
+ */
+final class I2PSignatureVerifier {
+
+    private static final Logger LOG = Logger.getLogger(I2PSignatureVerifier.class.getName());
+
+    private static final int BATCH_SIZE = 64;
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * Signed content to verify. Public key is X.509 encoded.
+     */
+    static final class Signed {
+        final int scheme;
+        final byte[] publicKey;
+        final byte[] content;
+        final byte[] signature;
+
+        Signed(int scheme, byte[] publicKey, byte[] content, byte[] signature) {
+            this.scheme = scheme;
+            this.publicKey = publicKey;
+            this.content = content;
+            this.signature = signature;
+        }
+    }
+
+    private static final class Request {
+        final Signed signed;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        ByteBuffer digest;
+
+        Request(Signed signed) {
+            this.signed = signed;
+        }
+    }
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Map<ByteBuffer,Boolean> verified;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = false;
+
+    I2PSignatureVerifier(int threads, final int cacheSize) {
+        this.verified = Collections.synchronizedMap(new LinkedHashMap<ByteBuffer,Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer,Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        for(int i=0; i<Math.max(1, threads); i++) {
+            Thread t = new Thread(new Worker(), "I2PSignatureVerifier-"+i);
+            t.setDaemon(true);
+            workers.add(t);
+        }
+    }
+
+    public void start() {
+        running = true;
+        for(Thread t : workers) {
+            t.start();
+        }
+        LOG.info("Signature verifier started with "+workers.size()+" worker(s).");
+    }
+
+    public void shutdown() {
+        running = false;
+        for(Thread t : workers) {
+            t.interrupt();
+        }
+        Request r;
+        while((r = queue.poll())!=null) {
+            r.result.cancel(false);
+        }
+    }
+
+    public CompletableFuture<Boolean> verify(Signed signed) {
+        Request r = new Request(signed);
+        if(running) {
+            queue.add(r);
+            // Shutdown may have drained the queue between the check and the add
+            if(running || !queue.remove(r)) {
+                return r.result;
+            }
+        }
+        r.result.completeExceptionally(new IllegalStateException("Signature verifier not running."));
+        return r.result;
+    }
+
+    /**
+     * Verifies all provided signatures, results in the same order.
+     */
+    public CompletableFuture<List<Boolean>> verifyBatch(List<Signed> batch) {
+        final List<CompletableFuture<Boolean>> futures = new ArrayList<>(batch.size());
+        for(Signed s : batch) {
+            futures.add(verify(s));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<Boolean> results = new ArrayList<>(futures.size());
+            for(CompletableFuture<Boolean> f : futures) {
+                results.add(f.join());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Number of verified signatures remembered.
+     */
+    int cached() {
+        return verified.size();
+    }
+
+    static String algorithm(int scheme) {
+        if(scheme == I2PAndroidService.ElGamal2048DSA1024) return "SHA1withDSA";
+        if(scheme == I2PAndroidService.ECDH256ECDSA256) return "SHA256withECDSA";
+        if(scheme == I2PAndroidService.ECDH521EDCSA521) return "SHA512withECDSA";
+        // NTRUEncrypt-1087 / GMSS-512 has no JCA provider available
+        return null;
+    }
+
+    static String keyAlgorithm(int scheme) {
+        if(scheme == I2PAndroidService.ElGamal2048DSA1024) return "DSA";
+        if(scheme == I2PAndroidService.ECDH256ECDSA256 || scheme == I2PAndroidService.ECDH521EDCSA521) return "EC";
+        return null;
+    }
+
+    /**
+     * Cache key over all fields, each length prefixed so bytes cannot move from one field to
+     * the next (e.g. the end of the content to the start of the signature) with the same digest.
+     */
+    static ByteBuffer digest(MessageDigest md, Signed s) {
+        md.reset();
+        md.update((byte)s.scheme);
+        update(md, s.publicKey);
+        update(md, s.content);
+        update(md, s.signature);
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private static void update(MessageDigest md, byte[] field) {
+        int length = field.length;
+        md.update(new byte[]{(byte)(length >>> 24), (byte)(length >>> 16), (byte)(length >>> 8), (byte)length});
+        md.update(field);
+    }
+
+    private final class Worker implements Runnable {
+
+        private final Map<String,Signature> signatures = new HashMap<>();
+        private final Map<String,KeyFactory> keyFactories = new HashMap<>();
+        private MessageDigest md;
+
+        @Override
+        public void run() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                LOG.severe("SHA-256 not available: "+e.getLocalizedMessage());
+                return;
+            }
+            List<Request> batch = new ArrayList<>(BATCH_SIZE);
+            while(running) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                process(batch);
+                batch.clear();
+            }
+        }
+
+        private void process(List<Request> batch) {
+            // Group by scheme and key so each key is decoded once per batch
+            Map<ByteBuffer,List<Request>> byKey = new LinkedHashMap<>();
+            for(Request r : batch) {
+                if(r.result.isDone()) continue;
+                r.digest = digest(md, r.signed);
+                if(verified.containsKey(r.digest)) {
+                    r.result.complete(true);
+                    continue;
+                }
+                byte[] keyBytes = new byte[1 + r.signed.publicKey.length];
+                keyBytes[0] = (byte)r.signed.scheme;
+                System.arraycopy(r.signed.publicKey, 0, keyBytes, 1, r.signed.publicKey.length);
+                ByteBuffer key = ByteBuffer.wrap(keyBytes);
+                List<Request> group = byKey.get(key);
+                if(group==null) {
+                    group = new ArrayList<>();
+                    byKey.put(key, group);
+                }
+                group.add(r);
+            }
+            for(List<Request> group : byKey.values()) {
+                verifyGroup(group);
+            }
+        }
+
+        private void verifyGroup(List<Request> group) {
+            Signed first = group.get(0).signed;
+            String alg = algorithm(first.scheme);
+            if(alg==null) {
+                LOG.warning("Signature scheme "+first.scheme+" not supported for verification.");
+                for(Request r : group) r.result.complete(false);
+                return;
+            }
+            PublicKey publicKey;
+            Signature sig;
+            try {
+                KeyFactory kf = keyFactories.get(keyAlgorithm(first.scheme));
+                if(kf==null) {
+                    kf = KeyFactory.getInstance(keyAlgorithm(first.scheme));
+                    keyFactories.put(keyAlgorithm(first.scheme), kf);
+                }
+                publicKey = kf.generatePublic(new X509EncodedKeySpec(first.publicKey));
+                sig = signatures.get(alg);
+                if(sig==null) {
+                    sig = Signature.getInstance(alg);
+                    signatures.put(alg, sig);
+                }
+            } catch (Exception e) {
+                LOG.warning("Unable to load public key for signature verification: "+e.getLocalizedMessage());
+                for(Request r : group) r.result.complete(false);
+                return;
+            }
+            for(Request r : group) {
+                boolean valid;
+                try {
+                    sig.initVerify(publicKey);
+                    sig.update(r.signed.content);
+                    valid = sig.verify(r.signed.signature);
+                } catch (Exception e) {
+                    LOG.fine("Signature verification failed: "+e.getLocalizedMessage());
+                    valid = false;
+                }
+                if(valid) {
+                    verified.put(r.digest, true);
+                }
+                r.result.complete(valid);
+            }
+        }
+    }
+}
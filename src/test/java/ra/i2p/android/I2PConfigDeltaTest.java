@@ -0,0 +1,65 @@
+package ra.i2p.android;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class I2PConfigDeltaTest {
+
+    @Test
+    public void scopeRules() {
+        Assert.assertEquals(I2PConfigDelta.Scope.LIVE, I2PConfigDelta.scope(I2PConfigDelta.ROUTER_HIDDEN_MODE));
+        Assert.assertEquals(I2PConfigDelta.Scope.LIVE, I2PConfigDelta.scope(I2PConfigDelta.ROUTER_SHARE_PERCENTAGE));
+        Assert.assertEquals(I2PConfigDelta.Scope.LIVE, I2PConfigDelta.scope(I2PConfigDelta.ROUTER_GEOIP_ENABLE));
+        Assert.assertEquals(I2PConfigDelta.Scope.LIVE, I2PConfigDelta.scope("inbound.length"));
+        Assert.assertEquals(I2PConfigDelta.Scope.LIVE, I2PConfigDelta.scope("outbound.quantity"));
+        Assert.assertEquals(I2PConfigDelta.Scope.SESSION, I2PConfigDelta.scope("i2cp.domainSocket"));
+        Assert.assertEquals(I2PConfigDelta.Scope.SERVICE, I2PConfigDelta.scope("ra.i2p.maxPeers"));
+        // Tunnel-looking keys that are not I2CP parameters are only stored
+        Assert.assertEquals(I2PConfigDelta.Scope.SERVICE, I2PConfigDelta.scope("inbound.nickname"));
+    }
+
+    @Test
+    public void betweenSkipsUnchangedAndClassifies() {
+        Properties current = new Properties();
+        current.setProperty("inbound.length", "3");
+        current.setProperty("ra.i2p.maxPeers", "50000");
+        Map<String,String> updates = new HashMap<>();
+        updates.put("inbound.length", "3");
+        updates.put("ra.i2p.maxPeers", "100");
+        updates.put(I2PConfigDelta.ROUTER_HIDDEN_MODE, "true");
+        updates.put("outbound.length", "2");
+        updates.put("ra.i2p.journal.enabled", null);
+        I2PConfigDelta delta = I2PConfigDelta.between(current, updates);
+        Assert.assertFalse(delta.isEmpty());
+        Assert.assertFalse(delta.requiresSessionRebuild());
+        Assert.assertEquals(2, delta.live().size());
+        Assert.assertEquals("true", delta.live().get(I2PConfigDelta.ROUTER_HIDDEN_MODE));
+        Assert.assertEquals("2", delta.live().get("outbound.length"));
+        Assert.assertEquals(3, delta.all().size());
+        Assert.assertEquals("100", delta.all().get("ra.i2p.maxPeers"));
+        Assert.assertFalse(delta.all().containsKey("inbound.length"));
+    }
+
+    @Test
+    public void domainSocketRequiresSessionRebuild() {
+        Map<String,String> updates = new HashMap<>();
+        updates.put("i2cp.domainSocket", "true");
+        I2PConfigDelta delta = I2PConfigDelta.between(new Properties(), updates);
+        Assert.assertTrue(delta.requiresSessionRebuild());
+        Assert.assertEquals("true", delta.session().get("i2cp.domainSocket"));
+        Assert.assertTrue(delta.live().isEmpty());
+    }
+
+    @Test
+    public void noChangesIsEmpty() {
+        Properties current = new Properties();
+        current.setProperty(I2PConfigDelta.ROUTER_HIDDEN_MODE, "false");
+        Map<String,String> updates = new HashMap<>();
+        updates.put(I2PConfigDelta.ROUTER_HIDDEN_MODE, "false");
+        Assert.assertTrue(I2PConfigDelta.between(current, updates).isEmpty());
+    }
+}
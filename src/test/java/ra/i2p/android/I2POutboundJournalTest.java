@@ -0,0 +1,206 @@
+package ra.i2p.android;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+public class I2POutboundJournalTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private I2POutboundJournal journal;
+
+    @Before
+    public void init() throws IOException {
+        dir = new File(folder.getRoot(), "outbound");
+        journal = new I2POutboundJournal(dir, SEGMENT_SIZE, false);
+        journal.open();
+    }
+
+    @After
+    public void teardown() {
+        journal.close();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void reopen() throws IOException {
+        journal.close();
+        journal = new I2POutboundJournal(dir, SEGMENT_SIZE, false);
+        journal.open();
+    }
+
+    @Test
+    public void appendPeekCommit() throws IOException {
+        Assert.assertFalse(journal.hasPending());
+        Assert.assertNull(journal.peek());
+        journal.append(bytes("one"));
+        journal.append(bytes("two"));
+        Assert.assertEquals(2, journal.pending());
+        Assert.assertEquals("one", string(journal.peek()));
+        // Peek does not consume
+        Assert.assertEquals("one", string(journal.peek()));
+        journal.commit();
+        Assert.assertEquals("two", string(journal.peek()));
+        journal.commit();
+        Assert.assertFalse(journal.hasPending());
+        Assert.assertNull(journal.peek());
+        // Commit without a peeked record is a no-op
+        journal.commit();
+        Assert.assertEquals(0, journal.pending());
+    }
+
+    @Test
+    public void reopenResumesAtCursor() throws IOException {
+        for(int i=0; i<10; i++) {
+            journal.append(bytes("msg"+i));
+        }
+        for(int i=0; i<4; i++) {
+            journal.peek();
+            journal.commit();
+        }
+        // Peeked but not committed is delivered again after a restart
+        journal.peek();
+        reopen();
+        Assert.assertEquals(6, journal.pending());
+        Assert.assertEquals("msg4", string(journal.peek()));
+        journal.append(bytes("msg10"));
+        Assert.assertEquals(7, journal.pending());
+    }
+
+    @Test
+    public void unacknowledgedReadAgainAfterReopen() throws IOException {
+        for(int i=0; i<5; i++) {
+            journal.append(bytes("msg"+i));
+        }
+        long[] handles = new long[5];
+        for(int i=0; i<5; i++) {
+            Assert.assertEquals("msg"+i, string(journal.peek()));
+            handles[i] = journal.take();
+        }
+        Assert.assertFalse(journal.hasPending());
+        Assert.assertEquals(5, journal.unacknowledged());
+        // Acknowledged out of order: only the contiguous prefix msg0..msg1 is durable
+        journal.ack(handles[1]);
+        journal.ack(handles[0]);
+        journal.ack(handles[3]);
+        Assert.assertEquals(3, journal.unacknowledged());
+        reopen();
+        Assert.assertEquals(3, journal.pending());
+        Assert.assertEquals("msg2", string(journal.peek()));
+    }
+
+    @Test
+    public void ackOfLastOutstandingMakesAllDurable() throws IOException {
+        for(int i=0; i<3; i++) {
+            journal.append(bytes("msg"+i));
+        }
+        journal.peek();
+        long first = journal.take();
+        journal.peek();
+        long second = journal.take();
+        journal.ack(second);
+        // Acknowledging twice or an unknown handle is a no-op
+        journal.ack(second);
+        journal.ack(42);
+        journal.ack(first);
+        Assert.assertEquals(0, journal.unacknowledged());
+        reopen();
+        Assert.assertEquals(1, journal.pending());
+        Assert.assertEquals("msg2", string(journal.peek()));
+    }
+
+    @Test
+    public void rewindReturnsRecordToPeek() throws IOException {
+        journal.append(bytes("one"));
+        journal.append(bytes("two"));
+        journal.peek();
+        long one = journal.take();
+        journal.peek();
+        long two = journal.take();
+        Assert.assertNull(journal.peek());
+        // Only the most recently taken record can be put back
+        Assert.assertFalse(journal.rewind(one));
+        Assert.assertTrue(journal.rewind(two));
+        Assert.assertEquals(1, journal.pending());
+        Assert.assertEquals("two", string(journal.peek()));
+        journal.ack(one);
+        journal.commit();
+        Assert.assertFalse(journal.hasPending());
+        Assert.assertEquals(0, journal.unacknowledged());
+    }
+
+    @Test
+    public void rollsOverAndCompactsSegments() throws Exception {
+        byte[] record = new byte[1000];
+        int count = 200; // ~3 segments
+        for(int i=0; i<count; i++) {
+            record[0] = (byte)i;
+            Assert.assertTrue(journal.append(record));
+        }
+        Assert.assertTrue(segmentCount() >= 3);
+        for(int i=0; i<count; i++) {
+            byte[] payload = journal.peek();
+            Assert.assertNotNull(payload);
+            Assert.assertEquals((byte)i, payload[0]);
+            journal.commit();
+        }
+        Assert.assertNull(journal.peek());
+        journal.compact();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(segmentCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, segmentCount());
+    }
+
+    @Test
+    public void rejectsRecordLargerThanSegment() throws IOException {
+        Assert.assertFalse(journal.append(new byte[SEGMENT_SIZE]));
+        Assert.assertFalse(journal.hasPending());
+    }
+
+    @Test
+    public void truncatesTornRecordOnOpen() throws IOException {
+        journal.append(bytes("kept"));
+        journal.append(bytes("torn"));
+        journal.close();
+        // Corrupt the crc of the second record as if the process died mid-append
+        File segment = new File(dir, String.format("segment-%016d.log", 0));
+        try(RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(8 + 4 + 4);
+            raf.writeInt(0xBADC0DE);
+        }
+        journal = new I2POutboundJournal(dir, SEGMENT_SIZE, false);
+        journal.open();
+        Assert.assertEquals(1, journal.pending());
+        Assert.assertEquals("kept", string(journal.peek()));
+        journal.commit();
+        Assert.assertNull(journal.peek());
+        journal.append(bytes("next"));
+        Assert.assertEquals("next", string(journal.peek()));
+    }
+
+    private int segmentCount() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-"));
+        return files==null ? 0 : files.length;
+    }
+}
@@ -0,0 +1,138 @@
+package ra.i2p.android;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class I2PPeerTableTest {
+
+    private static NetworkPeer peer(String fingerprint) {
+        NetworkPeer peer = new NetworkPeer(Network.I2P.name());
+        peer.getDid().getPublicKey().setFingerprint(fingerprint);
+        return peer;
+    }
+
+    private static String fingerprint(NetworkPeer peer) {
+        return peer.getDid().getPublicKey().getFingerprint();
+    }
+
+    @Test
+    public void putGetRemove() {
+        I2PPeerTable table = new I2PPeerTable(1000);
+        for(int i=0; i<500; i++) {
+            Assert.assertTrue(table.put(peer("fp"+i), "US", I2PPeerTable.REACHABILITY_REACHABLE, i, 1.0f));
+        }
+        Assert.assertEquals(500, table.size());
+        for(int i=0; i<500; i+=2) {
+            Assert.assertTrue(table.remove("fp"+i));
+        }
+        Assert.assertEquals(250, table.size());
+        for(int i=0; i<500; i++) {
+            Assert.assertEquals(i%2==1, table.contains("fp"+i));
+        }
+        Assert.assertEquals("fp1", fingerprint(table.get("fp1")));
+        Assert.assertNull(table.get("fp0"));
+        Assert.assertFalse(table.remove("fp0"));
+    }
+
+    @Test
+    public void updateKeepsOneEntry() {
+        I2PPeerTable table = new I2PPeerTable(10);
+        table.put(peer("a"), "US", I2PPeerTable.REACHABILITY_REACHABLE, 1, 1.0f);
+        table.put(peer("a"), "DE", I2PPeerTable.REACHABILITY_BACKLOGGED, 2, 1.0f);
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(0, table.countByCountry("US"));
+        Assert.assertEquals(1, table.countByCountry("DE"));
+        Assert.assertEquals(0, table.countByReachability(I2PPeerTable.REACHABILITY_REACHABLE));
+        Assert.assertEquals(1, table.countByReachability(I2PPeerTable.REACHABILITY_BACKLOGGED));
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        I2PPeerTable table = new I2PPeerTable(2);
+        Assert.assertTrue(table.put(peer("a"), null, I2PPeerTable.REACHABILITY_UNKNOWN, 1, 1.0f));
+        Assert.assertTrue(table.put(peer("b"), null, I2PPeerTable.REACHABILITY_UNKNOWN, 1, 1.0f));
+        Assert.assertTrue(table.isFull());
+        Assert.assertFalse(table.put(peer("c"), null, I2PPeerTable.REACHABILITY_UNKNOWN, 1, 1.0f));
+        Assert.assertEquals(2, table.countByCountry(null));
+    }
+
+    @Test
+    public void hashCollisions() {
+        // Every fingerprint hashes to the same key
+        I2PPeerTable table = new I2PPeerTable(100, fp -> 42L);
+        for(int i=0; i<5; i++) {
+            Assert.assertTrue(table.put(peer("a"), "US", I2PPeerTable.REACHABILITY_REACHABLE, i, 1.0f));
+            Assert.assertTrue(table.put(peer("b"), "US", I2PPeerTable.REACHABILITY_REACHABLE, i, 1.0f));
+            Assert.assertTrue(table.put(peer("c"), "US", I2PPeerTable.REACHABILITY_REACHABLE, i, 1.0f));
+        }
+        Assert.assertEquals(3, table.size());
+        Assert.assertTrue(table.contains("b"));
+        Assert.assertEquals("b", fingerprint(table.get("b")));
+        Assert.assertTrue(table.remove("b"));
+        Assert.assertFalse(table.contains("b"));
+        Assert.assertTrue(table.contains("a"));
+        Assert.assertTrue(table.contains("c"));
+        Assert.assertTrue(table.remove("a"));
+        Assert.assertEquals("c", fingerprint(table.get("c")));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void lastSeenIndex() {
+        I2PPeerTable table = new I2PPeerTable(1000);
+        // Inserted in reverse and random order to exercise both sides of the index
+        for(int i=999; i>=500; i--) {
+            table.put(peer("fp"+i), "US", I2PPeerTable.REACHABILITY_REACHABLE, i, 1.0f);
+        }
+        Random random = new Random(7);
+        for(int i=0; i<500; i++) {
+            table.put(peer("fp"+i), "US", I2PPeerTable.REACHABILITY_REACHABLE, i, 1.0f);
+            table.markSeen("fp"+random.nextInt(i+1), i);
+        }
+        Assert.assertEquals(100, table.countSeenSince(900));
+        Assert.assertEquals(1000, table.countSeenSince(0));
+        Assert.assertTrue(table.markSeen("fp3", 5000));
+        Assert.assertEquals(1, table.countSeenSince(1000));
+        List<NetworkPeer> newest = table.seenSince(998, 10);
+        Assert.assertEquals("fp3", fingerprint(newest.get(0)));
+        Assert.assertEquals(3, newest.size());
+        Assert.assertEquals(499, table.evictSeenBefore(500));
+        Assert.assertEquals(501, table.size());
+        Assert.assertTrue(table.contains("fp3"));
+    }
+
+    @Test
+    public void sampling() {
+        I2PPeerTable table = new I2PPeerTable(100);
+        Random random = new Random(1);
+        Assert.assertNull(table.randomPeer(random));
+        Assert.assertNull(table.weightedRandomPeer(random));
+        for(int i=0; i<50; i++) {
+            table.put(peer("fp"+i), i<25 ? "US" : "DE", I2PPeerTable.REACHABILITY_REACHABLE, i, i==42 ? 1.0f : 0.0f);
+        }
+        for(int i=0; i<100; i++) {
+            Assert.assertEquals("fp42", fingerprint(table.weightedRandomPeer(random)));
+            Assert.assertTrue(Integer.parseInt(fingerprint(table.randomPeerInCountry(random, "US")).substring(2)) < 25);
+        }
+        Set<String> distinct = new HashSet<>();
+        for(NetworkPeer p : table.randomPeers(random, 20)) {
+            distinct.add(fingerprint(p));
+        }
+        Assert.assertEquals(20, distinct.size());
+        distinct.clear();
+        for(NetworkPeer p : table.randomPeers(random, 100)) {
+            distinct.add(fingerprint(p));
+        }
+        Assert.assertEquals(50, distinct.size());
+        table.remove("fp42");
+        // No weight left: falls back to uniform sampling
+        Assert.assertNotNull(table.weightedRandomPeer(random));
+    }
+}
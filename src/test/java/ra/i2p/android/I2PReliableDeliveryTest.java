@@ -0,0 +1,271 @@
+package ra.i2p.android;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+public class I2PReliableDeliveryTest {
+
+    private static final class FakeTransport implements I2PReliableDelivery.Transport {
+        final NetworkPeer local = peer("local");
+        final List<Envelope> transmitted = new ArrayList<>();
+        final List<Envelope> delivered = new ArrayList<>();
+        final List<Envelope> failed = new ArrayList<>();
+        final List<String> succeeded = new ArrayList<>();
+        int windowOpened = 0;
+
+        @Override
+        public NetworkPeer localPeer() {
+            return local;
+        }
+
+        @Override
+        public Boolean transmit(Envelope envelope) {
+            transmitted.add(envelope);
+            return true;
+        }
+
+        @Override
+        public void delivered(Envelope envelope) {
+            delivered.add(envelope);
+        }
+
+        @Override
+        public void deliveryFailed(Envelope envelope) {
+            failed.add(envelope);
+        }
+
+        @Override
+        public void peerSucceeded(String fingerprint) {
+            succeeded.add(fingerprint);
+        }
+
+        @Override
+        public void windowOpened() {
+            windowOpened++;
+        }
+
+        Envelope last() {
+            return transmitted.get(transmitted.size()-1);
+        }
+    }
+
+    private final FakeTransport transport = new FakeTransport();
+    private final NetworkPeer remote = peer("remote");
+
+    private static NetworkPeer peer(String fingerprint) {
+        NetworkPeer peer = new NetworkPeer(Network.I2P.name());
+        peer.getDid().getPublicKey().setFingerprint(fingerprint);
+        return peer;
+    }
+
+    private Envelope outbound() {
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addExternalRoute(I2PAndroidService.class, I2PAndroidService.OPERATION_SEND, transport.local, remote);
+        return envelope;
+    }
+
+    private Envelope inbound(long epoch, long seq, long forward) {
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addExternalRoute(I2PAndroidService.class, I2PAndroidService.OPERATION_SEND, remote, transport.local);
+        envelope.addNVP(I2PReliableDelivery.EPOCH, String.valueOf(epoch));
+        envelope.addNVP(I2PReliableDelivery.SEQ, String.valueOf(seq));
+        envelope.addNVP(I2PReliableDelivery.FWD, String.valueOf(forward));
+        return envelope;
+    }
+
+    private Envelope ack(long cumulative) {
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addExternalRoute(I2PAndroidService.class, I2PAndroidService.OPERATION_SEND, remote, transport.local);
+        envelope.addNVP(I2PReliableDelivery.ACK, String.valueOf(cumulative));
+        envelope.addNVP(I2PReliableDelivery.SACK, "");
+        return envelope;
+    }
+
+    private static long seq(Envelope envelope) {
+        return Long.parseLong(String.valueOf(envelope.getValue(I2PReliableDelivery.SEQ)));
+    }
+
+    /**
+     * The acknowledgement flushed on the next tick, null if none is due.
+     */
+    private Envelope flushedAck(I2PReliableDelivery reliable) {
+        int before = transport.transmitted.size();
+        reliable.tick(System.currentTimeMillis());
+        return transport.transmitted.size() > before ? transport.last() : null;
+    }
+
+    @Test
+    public void suppressesDuplicates() {
+        I2PReliableDelivery reliable = new I2PReliableDelivery(transport, 4, 2);
+        Assert.assertTrue(reliable.receive(inbound(7, 0, 0)));
+        Assert.assertTrue(reliable.receive(inbound(7, 1, 0)));
+        Assert.assertFalse(reliable.receive(inbound(7, 0, 0)));
+        Assert.assertEquals("1", flushedAck(reliable).getValue(I2PReliableDelivery.ACK));
+        // Retransmission after a lost ack is acknowledged again
+        Assert.assertFalse(reliable.receive(inbound(7, 1, 0)));
+        Assert.assertEquals("1", flushedAck(reliable).getValue(I2PReliableDelivery.ACK));
+        Assert.assertNull(flushedAck(reliable));
+    }
+
+    @Test
+    public void forwardMarkerSkipsHoles() {
+        I2PReliableDelivery reliable = new I2PReliableDelivery(transport, 4, 2);
+        Assert.assertTrue(reliable.receive(inbound(7, 0, 0)));
+        Assert.assertTrue(reliable.receive(inbound(7, 4, 0)));
+        Envelope ack = flushedAck(reliable);
+        Assert.assertEquals("0", ack.getValue(I2PReliableDelivery.ACK));
+        Assert.assertEquals("4", ack.getValue(I2PReliableDelivery.SACK));
+        // Sender gave up on 1 and 2 and now waits on nothing below 3
+        Assert.assertTrue(reliable.receive(inbound(7, 3, 3)));
+        ack = flushedAck(reliable);
+        Assert.assertEquals("4", ack.getValue(I2PReliableDelivery.ACK));
+        Assert.assertEquals("", ack.getValue(I2PReliableDelivery.SACK));
+        // A late skipped sequence is not delivered
+        Assert.assertFalse(reliable.receive(inbound(7, 1, 3)));
+    }
+
+    @Test
+    public void newEpochStartsOver() {
+        I2PReliableDelivery reliable = new I2PReliableDelivery(transport, 4, 2);
+        Assert.assertTrue(reliable.receive(inbound(7, 0, 0)));
+        Assert.assertTrue(reliable.receive(inbound(7, 1, 0)));
+        // Sender restarted its channel; sequence numbers start over
+        Assert.assertTrue(reliable.receive(inbound(8, 0, 0)));
+        Assert.assertEquals("0", flushedAck(reliable).getValue(I2PReliableDelivery.ACK));
+        Assert.assertFalse(reliable.receive(inbound(8, 0, 0)));
+    }
+
+    @Test
+    public void probesUntilAcknowledged() {
+        I2PReliableDelivery reliable = new I2PReliableDelivery(transport, 4, 2);
+        Envelope first = outbound();
+        Envelope second = outbound();
+        reliable.send(first);
+        reliable.send(second);
+        // Unconfirmed destination: a single probe in flight
+        Assert.assertEquals(1, transport.transmitted.size());
+        Assert.assertFalse(reliable.hasRoom(outbound()));
+        reliable.receive(ack(0));
+        Assert.assertEquals(Arrays.asList(first), transport.delivered);
+        Assert.assertEquals(Arrays.asList("remote"), transport.succeeded);
+        Assert.assertEquals(2, transport.transmitted.size());
+        Assert.assertEquals(1, seq(transport.last()));
+        Assert.assertTrue(reliable.hasRoom(outbound()));
+        reliable.tick(System.currentTimeMillis());
+        Assert.assertEquals(1, transport.windowOpened);
+    }
+
+    @Test
+    public void retransmitsThenGivesUp() {
+        I2PReliableDelivery reliable = new I2PReliableDelivery(transport, 4, 2);
+        reliable.send(outbound());
+        reliable.receive(ack(0));
+        long t0 = System.currentTimeMillis();
+        Envelope envelope = outbound();
+        reliable.send(envelope);
+        int sends = transport.transmitted.size();
+        // Round trip measured near zero: the retransmission timeout is at its 1s minimum
+        reliable.tick(t0 + 500);
+        Assert.assertEquals(sends, transport.transmitted.size());
+        reliable.tick(t0 + 1300);
+        Assert.assertEquals(sends + 1, transport.transmitted.size());
+        Assert.assertSame(envelope, transport.last());
+        reliable.tick(t0 + 2000);
+        Assert.assertEquals(sends + 1, transport.transmitted.size());
+        // Second timeout doubles the retransmission timeout to 2s
+        reliable.tick(t0 + 2600);
+        Assert.assertEquals(sends + 2, transport.transmitted.size());
+        reliable.tick(t0 + 4000);
+        Assert.assertTrue(transport.failed.isEmpty());
+        reliable.tick(t0 + 4900);
+        Assert.assertEquals(Arrays.asList(envelope), transport.failed);
+        Assert.assertEquals(0, reliable.inFlight());
+    }
+
+    @Test
+    public void fallsBackWhenNeverAcknowledged() {
+        I2PReliableDelivery reliable = new I2PReliableDelivery(transport, 4, 8);
+        long t0 = System.currentTimeMillis();
+        Envelope probe = outbound();
+        Envelope queued = outbound();
+        reliable.send(probe);
+        reliable.send(queued);
+        reliable.tick(t0 + 3300);
+        reliable.tick(t0 + 6600);
+        Assert.assertEquals(3, transport.transmitted.size());
+        reliable.tick(t0 + 13000);
+        // Probe is not sent again or failed; the queued Envelope goes out best-effort
+        Assert.assertTrue(transport.failed.isEmpty());
+        Assert.assertEquals(4, transport.transmitted.size());
+        Assert.assertSame(queued, transport.last());
+        Assert.assertNull(queued.getValue(I2PReliableDelivery.SEQ));
+        Assert.assertEquals(Arrays.asList(probe, queued), transport.delivered);
+        Assert.assertEquals(0, reliable.inFlight());
+        Envelope later = outbound();
+        Assert.assertTrue(reliable.hasRoom(later));
+        Assert.assertTrue(reliable.send(later));
+        Assert.assertSame(later, transport.last());
+        Assert.assertNull(later.getValue(I2PReliableDelivery.SEQ));
+        // Reliable data from the destination shows it does run reliable delivery after all
+        reliable.receive(inbound(7, 0, 0));
+        Envelope reliableAgain = outbound();
+        reliable.send(reliableAgain);
+        Assert.assertSame(reliableAgain, transport.last());
+        Assert.assertEquals(0, seq(reliableAgain));
+        Assert.assertEquals(1, reliable.inFlight());
+    }
+
+    @Test
+    public void formatRanges() {
+        Assert.assertEquals("", I2PReliableDelivery.formatRanges(new TreeSet<Long>()));
+        Assert.assertEquals("7", I2PReliableDelivery.formatRanges(new TreeSet<>(Arrays.asList(7L))));
+        Assert.assertEquals("5-9,12,14-15",
+                I2PReliableDelivery.formatRanges(new TreeSet<>(Arrays.asList(5L, 6L, 7L, 8L, 9L, 12L, 14L, 15L))));
+    }
+
+    @Test
+    public void formatKeepsNewestRanges() {
+        TreeSet<Long> seqs = new TreeSet<>();
+        for(long seq=0; seq<100; seq+=2) {
+            seqs.add(seq);
+        }
+        List<long[]> ranges = I2PReliableDelivery.parseRanges(I2PReliableDelivery.formatRanges(seqs));
+        Assert.assertEquals(32, ranges.size());
+        Assert.assertEquals(98, ranges.get(ranges.size()-1)[0]);
+        Assert.assertEquals(36, ranges.get(0)[0]);
+    }
+
+    @Test
+    public void parseRanges() {
+        Assert.assertTrue(I2PReliableDelivery.parseRanges(null).isEmpty());
+        Assert.assertTrue(I2PReliableDelivery.parseRanges("").isEmpty());
+        List<long[]> ranges = I2PReliableDelivery.parseRanges("5-9,12,14-15");
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertEquals(5, ranges.get(0)[0]);
+        Assert.assertEquals(9, ranges.get(0)[1]);
+        Assert.assertEquals(12, ranges.get(1)[0]);
+        Assert.assertEquals(12, ranges.get(1)[1]);
+        Assert.assertEquals(14, ranges.get(2)[0]);
+        Assert.assertEquals(15, ranges.get(2)[1]);
+    }
+
+    @Test
+    public void roundTrip() {
+        TreeSet<Long> seqs = new TreeSet<>(Arrays.asList(1L, 2L, 3L, 10L, 20L, 21L, 1000000000000L));
+        TreeSet<Long> parsed = new TreeSet<>();
+        for(long[] r : I2PReliableDelivery.parseRanges(I2PReliableDelivery.formatRanges(seqs))) {
+            for(long seq=r[0]; seq<=r[1]; seq++) {
+                parsed.add(seq);
+            }
+        }
+        Assert.assertEquals(seqs, parsed);
+    }
+}
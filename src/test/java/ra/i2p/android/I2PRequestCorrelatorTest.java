@@ -0,0 +1,87 @@
+package ra.i2p.android;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.Envelope;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class I2PRequestCorrelatorTest {
+
+    private I2PRequestCorrelator correlator;
+
+    @Before
+    public void init() {
+        correlator = new I2PRequestCorrelator();
+    }
+
+    private static Throwable cause(CompletableFuture<Envelope> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        Assert.fail("Expected failure");
+        return null;
+    }
+
+    @Test
+    public void replyCompletesRequest() throws Exception {
+        CompletableFuture<Envelope> request = correlator.register("1", 60000);
+        Assert.assertTrue(correlator.contains("1"));
+        Envelope reply = Envelope.documentFactory();
+        Assert.assertFalse(correlator.complete("2", reply));
+        Assert.assertFalse(correlator.complete(null, reply));
+        Assert.assertTrue(correlator.complete("1", reply));
+        Assert.assertSame(reply, request.get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(correlator.contains("1"));
+        // Late duplicate reply
+        Assert.assertFalse(correlator.complete("1", reply));
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        CompletableFuture<Envelope> request = correlator.register("1", 50);
+        Assert.assertTrue(cause(request) instanceof TimeoutException);
+        Assert.assertFalse(correlator.contains("1"));
+        Assert.assertEquals(0, correlator.size());
+    }
+
+    @Test
+    public void cancelRemovesPending() {
+        CompletableFuture<Envelope> one = correlator.register("1", 60000);
+        correlator.register("2", 60000);
+        correlator.register("3", 60000);
+        Assert.assertEquals(3, correlator.size());
+        one.cancel(false);
+        Assert.assertFalse(correlator.contains("1"));
+        Assert.assertEquals(2, correlator.size());
+        correlator.cancelAll();
+        Assert.assertEquals(0, correlator.size());
+    }
+
+    @Test
+    public void rejectsDuplicateId() throws Exception {
+        CompletableFuture<Envelope> first = correlator.register("1", 60000);
+        CompletableFuture<Envelope> second = correlator.register("1", 60000);
+        Assert.assertTrue(cause(second) instanceof IllegalStateException);
+        // The original request is still outstanding and still completes
+        Assert.assertFalse(first.isDone());
+        Assert.assertTrue(correlator.contains("1"));
+        Envelope reply = Envelope.documentFactory();
+        Assert.assertTrue(correlator.complete("1", reply));
+        Assert.assertSame(reply, first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failCompletesExceptionally() throws Exception {
+        CompletableFuture<Envelope> request = correlator.register("1", 60000);
+        Assert.assertTrue(correlator.fail("1", new IllegalArgumentException("bad")));
+        Assert.assertTrue(cause(request) instanceof IllegalArgumentException);
+        Assert.assertFalse(correlator.fail("1", new IllegalArgumentException("bad")));
+    }
+}
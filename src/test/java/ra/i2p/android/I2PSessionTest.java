@@ -0,0 +1,62 @@
+package ra.i2p.android;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class I2PSessionTest {
+
+    private I2PSession session;
+
+    @Before
+    public void init() {
+        session = new I2PSession(null);
+        Properties p = new Properties();
+        p.setProperty("inbound.length", "3");
+        p.setProperty("i2cp.domainSocket", "false");
+        p.setProperty("ra.i2p.maxPeers", "100");
+        session.init(p);
+    }
+
+    private static Map<String,String> changed(String key, String value) {
+        Map<String,String> changed = new HashMap<>();
+        changed.put(key, value);
+        return changed;
+    }
+
+    @Test
+    public void initTakesOnlyI2CPParameters() {
+        Assert.assertEquals("3", session.options.getProperty("inbound.length"));
+        Assert.assertEquals("false", session.options.getProperty("i2cp.domainSocket"));
+        Assert.assertNull(session.options.getProperty("ra.i2p.maxPeers"));
+    }
+
+    @Test
+    public void affectedByOnlyChangedI2CPValuesWhenConnected() {
+        // Not open: nothing to recycle
+        Assert.assertFalse(session.affectedBy(changed("i2cp.domainSocket", "true")));
+        session.connected = true;
+        Assert.assertTrue(session.affectedBy(changed("i2cp.domainSocket", "true")));
+        Assert.assertTrue(session.affectedBy(changed("outbound.length", "2")));
+        Assert.assertFalse(session.affectedBy(changed("i2cp.domainSocket", "false")));
+        Assert.assertFalse(session.affectedBy(changed("inbound.length", "3")));
+        Assert.assertFalse(session.affectedBy(changed("ra.i2p.maxPeers", "5")));
+        Assert.assertFalse(session.affectedBy(changed(I2PConfigDelta.ROUTER_HIDDEN_MODE, "true")));
+    }
+
+    @Test
+    public void updateOptionsTakesOnlyTunnelParameters() {
+        Map<String,String> changed = changed("inbound.length", "2");
+        changed.put("i2cp.domainSocket", "true");
+        changed.put("ra.i2p.maxPeers", "5");
+        Assert.assertTrue(session.updateOptions(changed));
+        Assert.assertEquals("2", session.options.getProperty("inbound.length"));
+        Assert.assertEquals("false", session.options.getProperty("i2cp.domainSocket"));
+        Assert.assertNull(session.options.getProperty("ra.i2p.maxPeers"));
+        Assert.assertFalse(session.updateOptions(changed("i2cp.domainSocket", "true")));
+    }
+}
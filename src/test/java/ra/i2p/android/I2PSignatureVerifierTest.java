@@ -0,0 +1,135 @@
+package ra.i2p.android;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class I2PSignatureVerifierTest {
+
+    private static final int SCHEME = I2PAndroidService.ECDH256ECDSA256;
+
+    private I2PSignatureVerifier verifier;
+
+    @Before
+    public void init() {
+        verifier = new I2PSignatureVerifier(2, 100);
+        verifier.start();
+    }
+
+    @After
+    public void teardown() {
+        verifier.shutdown();
+    }
+
+    private static KeyPair keyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return generator.generateKeyPair();
+    }
+
+    private static I2PSignatureVerifier.Signed signed(KeyPair keys, String content) throws GeneralSecurityException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Signature sig = Signature.getInstance("SHA256withECDSA");
+        sig.initSign(keys.getPrivate());
+        sig.update(bytes);
+        return new I2PSignatureVerifier.Signed(SCHEME, keys.getPublic().getEncoded(), bytes, sig.sign());
+    }
+
+    private static boolean result(CompletableFuture<Boolean> f) throws Exception {
+        return f.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void verifiesAndCachesValidOnly() throws Exception {
+        KeyPair keys = keyPair();
+        I2PSignatureVerifier.Signed valid = signed(keys, "hello");
+        Assert.assertTrue(result(verifier.verify(valid)));
+        Assert.assertEquals(1, verifier.cached());
+        // Cache hit
+        Assert.assertTrue(result(verifier.verify(valid)));
+        Assert.assertEquals(1, verifier.cached());
+        I2PSignatureVerifier.Signed tampered = new I2PSignatureVerifier.Signed(SCHEME, valid.publicKey,
+                "hellp".getBytes(StandardCharsets.UTF_8), valid.signature);
+        Assert.assertFalse(result(verifier.verify(tampered)));
+        Assert.assertFalse(result(verifier.verify(tampered)));
+        Assert.assertEquals(1, verifier.cached());
+    }
+
+    @Test
+    public void rejectsByteMovedBetweenContentAndSignature() throws Exception {
+        KeyPair keys = keyPair();
+        I2PSignatureVerifier.Signed original = signed(keys, "hello");
+        Assert.assertTrue(result(verifier.verify(original)));
+        // Same concatenation of content and signature, split one byte later
+        byte[] content = Arrays.copyOf(original.content, original.content.length + 1);
+        content[original.content.length] = original.signature[0];
+        byte[] signature = Arrays.copyOfRange(original.signature, 1, original.signature.length);
+        I2PSignatureVerifier.Signed moved = new I2PSignatureVerifier.Signed(SCHEME, original.publicKey, content, signature);
+        Assert.assertFalse(result(verifier.verify(moved)));
+    }
+
+    @Test
+    public void batchOverInterleavedKeysKeepsOrder() throws Exception {
+        KeyPair a = keyPair();
+        KeyPair b = keyPair();
+        List<I2PSignatureVerifier.Signed> batch = new ArrayList<>();
+        List<Boolean> expected = new ArrayList<>();
+        for(int i=0; i<20; i++) {
+            I2PSignatureVerifier.Signed s = signed(i%2==0 ? a : b, "msg"+i);
+            if(i%7==3) {
+                // Signed by the other key
+                s = new I2PSignatureVerifier.Signed(SCHEME, (i%2==0 ? b : a).getPublic().getEncoded(), s.content, s.signature);
+            }
+            batch.add(s);
+            expected.add(i%7!=3);
+        }
+        Assert.assertEquals(expected, verifier.verifyBatch(batch).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unsupportedSchemeOrKeyIsInvalid() throws Exception {
+        I2PSignatureVerifier.Signed s = signed(keyPair(), "hello");
+        Assert.assertFalse(result(verifier.verify(new I2PSignatureVerifier.Signed(I2PAndroidService.NTRUEncrypt1087GMSS512, s.publicKey, s.content, s.signature))));
+        Assert.assertFalse(result(verifier.verify(new I2PSignatureVerifier.Signed(SCHEME, new byte[]{1, 2, 3}, s.content, s.signature))));
+    }
+
+    @Test
+    public void shutdownFailsPendingFutures() throws Exception {
+        KeyPair keys = keyPair();
+        List<I2PSignatureVerifier.Signed> batch = new ArrayList<>();
+        for(int i=0; i<2000; i++) {
+            batch.add(signed(keys, "msg"+i));
+        }
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+        for(I2PSignatureVerifier.Signed s : batch) {
+            pending.add(verifier.verify(s));
+        }
+        verifier.shutdown();
+        int failed = 0;
+        for(CompletableFuture<Boolean> f : pending) {
+            try {
+                // Verified before shutdown, or failed; never left pending
+                Assert.assertTrue(f.get(5, TimeUnit.SECONDS));
+            } catch (ExecutionException | CancellationException e) {
+                failed++;
+            }
+        }
+        Assert.assertTrue(failed > 0);
+        CompletableFuture<Boolean> after = verifier.verify(signed(keys, "late"));
+        Assert.assertTrue(after.isCompletedExceptionally());
+    }
+}